@@ -1,5 +1,6 @@
 package net.fabricmc.loom;
 
+import net.fabricmc.loom.newprovider.ConfigElementWrapper;
 import net.fabricmc.loom.util.OperatingSystem;
 import net.fabricmc.loom.util.Suppliers;
 import org.gradle.api.Project;
@@ -30,7 +31,8 @@ public class ForgeCapabilities {
 	}
 	
 	private int guessMinecraftMinorVersion() {
-		String mcVersion = extension.getProviderGraph().mcWrapper.getVersion();
+		//only reads the dependency declaration, so this doesn't drag the whole provider graph in just to look at a version number
+		String mcVersion = new ConfigElementWrapper(project.getConfigurations().getByName(Constants.MINECRAFT)).getVersion();
 		
 		try {
 			return Integer.parseInt(mcVersion.split("\\.")[1]);
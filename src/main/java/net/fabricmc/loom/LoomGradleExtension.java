@@ -33,6 +33,7 @@ import org.gradle.api.Project;
 import org.gradle.api.artifacts.Dependency;
 
 import java.nio.file.Path;
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
@@ -108,6 +109,18 @@ public class LoomGradleExtension {
 	 */
 	public String resourcesBaseUrl = "https://resources.download.minecraft.net/";
 	
+	/**
+	 * How many files Voldeloom downloads at once, when it has a lot of them to download (like Minecraft's assets).
+	 */
+	public int downloadThreads = 8;
+	
+	/**
+	 * How long a downloaded file is trusted before Voldeloom asks the server whether it changed (with an ETag, if it has one).
+	 * {@code null} asks every time. Files with a known SHA-1 hash are never revalidated once they have that hash, and
+	 * {@code offline} mode never contacts the server regardless.
+	 */
+	public Duration revalidateAfter = Duration.ofDays(1);
+	
 	/**
 	 * Holder for run configurations (essentially a {@code Map<String, RunConfig>}).
 	 * 
@@ -186,7 +199,9 @@ public class LoomGradleExtension {
 	public List<Action<? super Project>> beforeMinecraftSetupActions = new ArrayList<>();
 	
 	/**
-	 * Callback with a bit more precision than "afterEvaluate". Evaluated after Voldeloom has finished its afterEvaluate block.
+	 * Callback that runs right after Minecraft has been set up. That's no longer at a fixed point in "afterEvaluate": setup is
+	 * deferred until something needs Minecraft (usually a configuration like compileClasspath being resolved), and these
+	 * don't run at all in builds that never need it.
 	 * In Groovy, prefer to use the "afterMinecraftSetup" function instead.
 	 */
 	public List<Action<? super Project>> afterMinecraftSetupActions = new ArrayList<>();
@@ -205,7 +220,16 @@ public class LoomGradleExtension {
 		return Collections.unmodifiableList(unmappedModsBuilt);
 	}
 	
+	/**
+	 * Sets up Minecraft (if that hasn't happened yet) and returns the provider graph.
+	 */
 	public ProviderGraph getProviderGraph() {
+		providers.ensureSetup();
+		return providers;
+	}
+	
+	//For LoomGradlePlugin, to arrange a lazy setup without triggering one
+	ProviderGraph getProviderGraphWithoutSetup() {
 		return providers;
 	}
 	
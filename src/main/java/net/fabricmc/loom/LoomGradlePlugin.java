@@ -26,7 +26,10 @@ package net.fabricmc.loom;
 
 import groovy.util.Node;
 import net.fabricmc.loom.task.ConfigurationDebugTask;
+import net.fabricmc.loom.task.ExportBundleTask;
 import net.fabricmc.loom.task.GenSourcesTask;
+import net.fabricmc.loom.task.ImportBundleTask;
+import net.fabricmc.loom.task.PrewarmTask;
 import net.fabricmc.loom.task.RemappedConfigEntryFolderCopyTask;
 import net.fabricmc.loom.task.ReobfJarTask;
 import net.fabricmc.loom.task.RunTask;
@@ -38,6 +41,7 @@ import net.fabricmc.loom.task.runs.GenIdeaRunConfigsTask;
 import net.fabricmc.loom.task.runs.GenVsCodeProjectTask;
 import net.fabricmc.loom.util.Check;
 import net.fabricmc.loom.util.GradleSupport;
+import net.fabricmc.loom.util.LoomTaskExt;
 import net.fabricmc.loom.util.GroovyXmlUtil;
 import org.gradle.api.Plugin;
 import org.gradle.api.Project;
@@ -96,6 +100,16 @@ public class LoomGradlePlugin implements Plugin<Project> {
 		LoomGradleExtension extensionUnconfigured = project.getExtensions().create("volde", LoomGradleExtension.class, project);
 		
 		//Configure a few bonus Maven repositories. This acts the same as entering them in a `repositories { }` block in the buildscript.
+		//First, whatever voldeloomImportBundle unpacked. It's local, so it's cheap to check, and it has to come first to work in offline mode.
+		project.getRepositories().maven(repo -> {
+			repo.setName("VoldeloomBundle");
+			repo.setUrl(WellKnownLocations.getBundleRepository(project).toUri());
+			//Forge jars in the bundle don't have poms (see below)
+			repo.metadataSources(sources -> {
+				sources.mavenPom();
+				sources.artifact();
+			});
+		});
 		project.getRepositories().maven(repo -> {
 			repo.setName("Mojang");
 			repo.setUrl("https://libraries.minecraft.net/");
@@ -109,10 +123,6 @@ public class LoomGradlePlugin implements Plugin<Project> {
 			//I don't believe this breaks Gradle 4.
 			repo.metadataSources(MavenArtifactRepository.MetadataSources::artifact);
 		});
-		project.getRepositories().flatDir(repo -> {
-			repo.dir(WellKnownLocations.getRemappedModCache(project));
-			repo.setName("UserLocalRemappedMods");
-		});
 		//Needed for a dep of ASM 4.1 which is a dep of Launchwrapper which is a dep of Minecraft
 		//Also, apparently needed for random parent POMs like org.lwjgl.lwjgl:parent:2.9.0, don't ask me, i have no clue
 		project.getRepositories().mavenCentral();
@@ -162,7 +172,7 @@ public class LoomGradlePlugin implements Plugin<Project> {
 		//First do some Gradle back-compat stuff. We should create configurations with the same naming conventions as the ones in the current Gradle version.
 		String modImplementationName, modRuntimeOnlyName;
 		Map<String, String> corrections = new HashMap<>();
-		if(GradleSupport.compileOrImplementation.equals("compile")) {
+		if(GradleSupport.getCompileOrImplementationName(project.getConfigurations()).equals("compile")) {
 			//Gradle 6-
 			modImplementationName = "modCompile";
 			corrections.put("modImplementation", "modCompile");
@@ -174,7 +184,7 @@ public class LoomGradlePlugin implements Plugin<Project> {
 			corrections.put("coremodCompile", "coremodImplementation");
 		}
 		
-		if(GradleSupport.runtimeOrRuntimeOnly.equals("runtime")) {
+		if(GradleSupport.getRuntimeOrRuntimeOnlyName(project.getConfigurations()).equals("runtime")) {
 			//Gradle 6-
 			modRuntimeOnlyName = "modRuntime";
 			corrections.put("modRuntimeOnly", "modRuntime");
@@ -283,6 +293,16 @@ public class LoomGradlePlugin implements Plugin<Project> {
 		//Debug Funny
 		tasks.register("printConfigurationsPlease", ConfigurationDebugTask.class);
 		
+		//Offline bundles, for CI images:
+		tasks.register("voldeloomExportBundle", ExportBundleTask.class);
+		tasks.register("voldeloomImportBundle", ImportBundleTask.class);
+		tasks.register("voldeloomPrewarm", PrewarmTask.class);
+		
+		//None of these tasks can run out of the configuration cache yet (see the comment in GradleSupport, and the roadmap
+		//in the changelog for what's left). Take a task out of here once it stops reaching the Project while it runs.
+		tasks.withType(LoomTaskExt.class).configureEach(t -> GradleSupport.markNotCompatibleWithConfigurationCache(t, configurationCacheBlocker(t)));
+		tasks.withType(ReobfJarTask.class).configureEach(t -> GradleSupport.markNotCompatibleWithConfigurationCache(t, configurationCacheBlocker(t)));
+		
 		//TODO is it safe to configure this now? I ask because upstream did it in afterEvaluate
 		//TODO 2 i dont think its actually needed
 		//tasks.named("idea").configure(t -> t.finalizedBy(tasks.named("genIdeaWorkspace"), tasks.named("genIdeaRuns")));
@@ -310,9 +330,10 @@ public class LoomGradlePlugin implements Plugin<Project> {
 		//Pre-setup actions requested by the user
 		extension.beforeMinecraftSetupActions.forEach(action -> action.execute(project));
 		
-		//Scaffold the "provider" system. This is a loose term for "the things that have to run now, after the user configured
+		//Scaffold the "provider" system. This is a loose term for "the things that have to run after the user configured
 		//their settings in LoomGradleExtension, but before we're not allowed to mutate the project dependencies anymore".
-		extension.getProviderGraph().trySetup();
+		//It's expensive, so it doesn't run right now: it waits until someone resolves a configuration that needs Minecraft.
+		extension.getProviderGraphWithoutSetup().setupWhenNeeded();
 		
 		//Configure the for-release remapper
 		AbstractArchiveTask jarTask = (AbstractArchiveTask) project.getTasks().getByName("jar");
@@ -326,6 +347,10 @@ public class LoomGradlePlugin implements Plugin<Project> {
 			GradleSupport.setClassifier(reobfJarTask, "");
 			reobfJarTask.getInput().set(GradleSupport.getArchiveFile(jarTask));
 		}
+		//Reading the task's inputs shouldn't be what builds the reobf mappings (or sets up Minecraft), so this only peeks.
+		//Compiling the mod resolves Minecraft, so by the time Gradle looks at remapJarForRelease's inputs setup has happened.
+		ProviderGraph graph = extension.getProviderGraphWithoutSetup();
+		reobfJarTask.getReobfMappingsKey().set(project.provider(graph::peekReobfMappingsKey));
 		project.getArtifacts().add("archives", reobfJarTask);
 		
 		//add to classpath for runClient (TODO do this a different way? configurations? artifacts?)
@@ -374,12 +399,17 @@ public class LoomGradlePlugin implements Plugin<Project> {
 				}
 			}
 		}
-		
-		//User's post-setup actions
-		if(!extension.afterMinecraftSetupActions.isEmpty()) {
-			project.getLogger().info(":running " + extension.afterMinecraftSetupActions.size() + " afterMinecraftSetup action(s)");
-			extension.afterMinecraftSetupActions.forEach(action -> action.execute(project));
-		}
+	}
+	
+	/**
+	 * What's keeping a task out of the configuration cache, for Gradle's report. Keep in sync with the roadmap in the changelog.
+	 */
+	private static String configurationCacheBlocker(Object task) {
+		if(task instanceof RunTask) return "Voldeloom run tasks cook their arguments from the provider graph while running";
+		if(task instanceof ShimResourcesTask) return "shimResources reads the asset index from the provider graph while running";
+		if(task instanceof GenSourcesTask) return "genSources reads its jobs from the provider graph and forks Fernflower with Project.javaexec";
+		if(task instanceof ReobfJarTask) return "remapJarForRelease reads the reobf mappings from the provider graph while running";
+		return "Voldeloom tasks access the Project at execution time";
 	}
 	
 	/**
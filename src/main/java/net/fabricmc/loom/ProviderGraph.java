@@ -13,23 +13,30 @@ import net.fabricmc.loom.newprovider.MappingsWrapper;
 import net.fabricmc.loom.newprovider.Merger;
 import net.fabricmc.loom.newprovider.NaiveRenamer;
 import net.fabricmc.loom.newprovider.RemapperMcp;
+import net.fabricmc.loom.newprovider.ReobfMappings;
 import net.fabricmc.loom.newprovider.ResolvedConfigElementWrapper;
 import net.fabricmc.loom.newprovider.VanillaDependencyFetcher;
 import net.fabricmc.loom.newprovider.VanillaJarFetcher;
 import net.fabricmc.loom.task.GenSourcesTask;
 import net.fabricmc.loom.util.Props;
 import org.gradle.api.Project;
+import org.gradle.api.artifacts.Configuration;
 import org.gradle.api.logging.Logger;
 
+import javax.annotation.Nullable;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
 
 /**
  * Manages the tangle of DependencyProviders.
  * 
- * You should note that all of this stuff runs on every Gradle invocation, in afterEvaluate - caching is really important...
+ * You should note that all of this stuff runs on every Gradle invocation that needs Minecraft - caching is really important...
+ * (It used to run in afterEvaluate no matter what; now it runs the first time someone resolves a Minecraft-related
+ * configuration or calls {@code LoomGradleExtension#getProviderGraph}. See {@code setupWhenNeeded}.)
  */
 public class ProviderGraph {
 	public ProviderGraph(Project project, LoomGradleExtension extension) {
@@ -50,11 +57,13 @@ public class ProviderGraph {
 	public Path mcNativesDir;
 	//called from ShimAssetsTask, client run configs need to invoke it, not invoked here because assets aren't needed on the server/in CI
 	public AssetDownloader assets;
+	//voldeloomExportBundle would like to know what was downloaded into the user cache (assets are in `assets`, though)
+	public final Set<Path> downloadedFiles = new LinkedHashSet<>();
 	//package of data used by GenSources
 	public final List<GenSourcesTask.SourceGenerationJob> sourceGenerationJobs = new ArrayList<>();
 	
-	//used by ReobfJarTask TODO: FIX, it's not 1.2.5 clean
-	public Srg reobfSrg;
+	//used by ReobfJarTask through getReobfSrg TODO: FIX, it's not 1.2.5 clean
+	private ReobfMappings reobfMappings;
 	
 	public void setup() throws Exception {
 		log.lifecycle("# Wrapping basic dependencies...");
@@ -68,16 +77,17 @@ public class ProviderGraph {
 			.clientFilename(mcPrefix + "-client-{HASH}.jar")
 			.serverFilename(mcPrefix + "-server-{HASH}.jar")
 			.fetch();
+		downloadedFiles.addAll(vanillaJars.getDownloadedFiles());
 		
 		log.lifecycle("# Fetching vanilla dependencies...");
 		VanillaDependencyFetcher vanillaDeps = new VanillaDependencyFetcher(project, extension)
 			.superProps(vanillaJars)
 			.manifest(vanillaJars.getVersionManifest())
 			.librariesBaseUrl(extension.librariesBaseUrl)
-			.nativesDirname(mcWrapper.getFilenameSafeVersion() + "-{HASH}-v2") //v2 to cachebust some version manifest changes in 2.5
 			.fetch()
 			.installDependenciesToProject(Constants.MINECRAFT_DEPENDENCIES, project.getDependencies());
 		mcNativesDir = vanillaDeps.getNativesDir();
+		downloadedFiles.add(mcNativesDir);
 		
 		log.lifecycle("# Configuring asset downloader...");
 		assets = new AssetDownloader(project, extension)
@@ -131,7 +141,7 @@ public class ProviderGraph {
 		ResolvedConfigElementWrapper forgeWrapper
 	) throws Exception {
 		log.lifecycle("# ({}) Fetching Forge dependencies...", side);
-		new ForgeDependencyFetcher(project, extension)
+		ForgeDependencyFetcher forgeDeps = new ForgeDependencyFetcher(project, extension)
 			.forgeJar(forgeWrapper.getPath())
 			.fmlLibrariesBaseUrl(extension.fmlLibrariesBaseUrl)
 			.libDownloaderDir(forgeWrapper.getFilenameSafeDepString())
@@ -139,6 +149,7 @@ public class ProviderGraph {
 			.sniff()
 			.fetch()
 			.installDependenciesToProject(Constants.FORGE_DEPENDENCIES, project.getDependencies());
+		downloadedFiles.addAll(forgeDeps.getDownloadedFiles());
 		
 		log.lifecycle("# ({}) Jarmodding...", side);
 		String jarmoddedPrefix = mcPrefix + "-forge-" + forgeWrapper.getFilenameSafeVersion();
@@ -208,8 +219,12 @@ public class ProviderGraph {
 			.input(srgAtdJar)
 			.outputFilename(mappingsWrapper.getFilenameSafeDepString(), jarmoddedPrefix + "-named-{HASH}.jar")
 			.fields(mappings.fields)
-			.methods(mappings.methods)
-			.rename();
+			.methods(mappings.methods);
+		
+		//When ATs are applied after the SRG remap, the AT'd jar is NaiveRenamer's input, so entry names line up and the
+		//renamed jar can be patched when only some custom ATs changed. (On 1.6 and below tiny-remapper sits in between.)
+		if(extension.forgeCapabilities.mappedAccessTransformers.get()) naive.patchAfter(transformer);
+		naive.rename();
 		
 		//TODO: does this belong inside the per-side stuff, or outside
 		// probably inside? but i need better delineation of client and server workspace mods...
@@ -250,28 +265,105 @@ public class ProviderGraph {
 		
 		//TODO: oops all leaky abstraction again
 		if(side.equals("joined")) {
-			boolean reobfToSrg = extension.forgeCapabilities.distributionNamingScheme.get().equals(Constants.INTERMEDIATE_NAMING_SCHEME);
-			
-			log.lifecycle("# ({}) Initializing reobf mappings ({} -> {})...", side, Constants.MAPPED_NAMING_SCHEME,
-				reobfToSrg ? Constants.INTERMEDIATE_NAMING_SCHEME : Constants.PROGUARDED_NAMING_SCHEME);
-			
-			reobfSrg = mappings.chooseSrg(side).reobf(mappings.fields, mappings.methods, reobfToSrg);
+			//Not built yet, ReobfJarTask asks for them if it ever runs.
+			reobfMappings = new ReobfMappings(project, extension)
+				.superProps(mappingsWrapper.props, jarmod)
+				.srg(mappings.chooseSrg(side))
+				.fields(mappings.fields)
+				.methods(mappings.methods)
+				.reobfToSrg(extension.forgeCapabilities.distributionNamingScheme.get().equals(Constants.INTERMEDIATE_NAMING_SCHEME))
+				.reobfFilename(mappingsWrapper.getFilenameSafeDepString(), jarmoddedPrefix + "-reobf-{HASH}.srg");
+		}
+	}
+	
+	/**
+	 * Where the mappings ReobfJarTask uses are cached, building them first if needed. Returns {@code null} for split-jar
+	 * (1.2.5) setups, which don't have any.
+	 */
+	public @Nullable Path getReobfSrgFile() throws Exception {
+		return reobfMappings == null ? null : reobfMappings.getReobfSrgFile();
+	}
+	
+	/**
+	 * Names the mappings ReobfJarTask uses (by their cache filename, which hashes everything they're built from) without
+	 * building them, and without starting setup. Returns {@code null} if setup hasn't run, or for split-jar setups.
+	 */
+	public synchronized @Nullable String peekReobfMappingsKey() {
+		if(reobfMappings == null) return null;
+		
+		Path path = reobfMappings.getReobfSrgPath();
+		return path.getParent().getFileName() + "/" + path.getFileName();
+	}
+	
+	/**
+	 * Builds (or loads from the cache) the mappings ReobfJarTask uses. Returns {@code null} for split-jar (1.2.5) setups,
+	 * which don't have any.
+	 */
+	public @Nullable Srg getReobfSrg() throws Exception {
+		if(reobfMappings == null) return null;
+		
+		Srg reobfSrg = reobfMappings.getReobfSrg();
+		
+		if(project.hasProperty("voldeloom.reobf-debug")) {
+			Path dbgOut = project.getBuildDir().toPath().resolve("voldeloom-reobf-mappings-debug.srg");
+			Files.deleteIfExists(dbgOut);
 			
-			if(project.hasProperty("voldeloom.reobf-debug")) {
-				Path dbgOut = project.getBuildDir().toPath().resolve("voldeloom-reobf-mappings-debug.srg");
-				Files.deleteIfExists(dbgOut);
-				
-				log.lifecycle("!! Writing debug reobf mappings to {}", dbgOut);
-				reobfSrg.writeTo(dbgOut);
-			}
+			log.lifecycle("!! Writing debug reobf mappings to {}", dbgOut);
+			reobfSrg.writeTo(dbgOut);
 		}
+		
+		return reobfSrg;
 	}
 	
-	public void trySetup() {
+	private boolean setupStarted = false;
+	private RuntimeException setupFailure = null;
+	
+	/**
+	 * Runs {@code setup} the first time it's called, followed by the user's {@code afterMinecraftSetup} actions, and does
+	 * nothing afterwards.
+	 * Callers don't need to worry about whether it's already been run; use {@code LoomGradleExtension#getProviderGraph}, which calls this.
+	 */
+	public synchronized void ensureSetup() {
+		if(setupFailure != null) throw setupFailure;
+		
+		//Either done already, or we're being called from inside setup() itself. Either way there's nothing to do.
+		if(setupStarted) return;
+		
+		if(!project.getState().getExecuted()) {
+			throw new IllegalStateException("Voldeloom's Minecraft setup was requested before the project finished evaluating, so the buildscript didn't have a chance to configure it!");
+		}
+		
+		setupStarted = true;
 		try {
 			setup();
+			
+			//User's post-setup actions
+			if(!extension.afterMinecraftSetupActions.isEmpty()) {
+				log.info(":running " + extension.afterMinecraftSetupActions.size() + " afterMinecraftSetup action(s)");
+				extension.afterMinecraftSetupActions.forEach(action -> action.execute(project));
+			}
 		} catch (Exception e) {
-			throw new RuntimeException("Exception setting up Voldeloom: " + e.getMessage(), e);
+			setupFailure = new RuntimeException("Exception setting up Voldeloom: " + e.getMessage(), e);
+			throw setupFailure;
 		}
 	}
+	
+	/**
+	 * Arranges for {@code ensureSetup} to be called right before any configuration that the provider graph adds dependencies to
+	 * gets resolved (including through a configuration extending it, like {@code compileClasspath}).
+	 * <p>
+	 * This way, Gradle invocations that don't need Minecraft at all (think {@code help}, {@code clean}, or running some unrelated
+	 * task in a multiproject build) don't pay for jar fetching, binpatching, remapping, etc.
+	 */
+	public void setupWhenNeeded() {
+		List<Configuration> configs = new ArrayList<>();
+		configs.add(project.getConfigurations().getByName(Constants.MINECRAFT_DEPENDENCIES));
+		configs.add(project.getConfigurations().getByName(Constants.FORGE_DEPENDENCIES));
+		configs.add(project.getConfigurations().getByName(Constants.MINECRAFT_NAMED));
+		for(RemappedConfigurationEntry entry : extension.remappedConfigurationEntries) configs.add(entry.getOutputConfig());
+		
+		//Configuration#withDependencies is Gradle 4.4+; it runs before the configuration (or anything extending it) resolves,
+		//and it's still allowed to add dependencies at that point
+		for(Configuration config : configs) config.withDependencies(deps -> ensureSetup());
+	}
 }
@@ -136,9 +136,9 @@ public class RunConfig implements Named {
 			copy.programArg("--assetsDir=" + ext.getProviderGraph().assets.getAssetsGameRoot().toAbsolutePath());
 		}
 		
-		//TODO: dumb kludge (and overrides user's choice for main class)
+		copy.setMainClass(cookMainClass(ext));
+		
 		if(ext.forgeCapabilities.requiresLaunchwrapper.get()) {
-			copy.setMainClass("net.minecraft.launchwrapper.Launch");
 			//TODO not here
 			copy.programArg("--version=" + ext.getProviderGraph().mcWrapper.getVersion() + " (Voldeloom deobf)");
 			
@@ -156,16 +156,37 @@ public class RunConfig implements Named {
 			copy.vmArg("-Dfml.ignoreInvalidMinecraftCertificates=true");
 		}
 		
-		//Toolchains nonsense
-		copy.autoConfigureToolchains &= ext.autoConfigureToolchains;
-		if(copy.autoConfigureToolchains) {
-			if(copy.runToolchainVersion == null) copy.runToolchainVersion = ext.defaultRunToolchainVersion;
-			if(copy.runToolchainVendor == null) copy.runToolchainVendor = ext.defaultRunToolchainVendor;
-		}
+		copy.applyToolchainDefaults(ext);
 		
 		return copy;
 	}
 	
+	/**
+	 * The parts of {@code cook} that don't need Minecraft to be set up, for callers that want to know the main class
+	 * and toolchain while the build is still being configured. Program and VM arguments are not cooked.
+	 */
+	public RunConfig cookWithoutMinecraft(LoomGradleExtension ext) {
+		RunConfig copy = copy();
+		copy.setMainClass(cookMainClass(ext));
+		copy.applyToolchainDefaults(ext);
+		return copy;
+	}
+	
+	private String cookMainClass(LoomGradleExtension ext) {
+		//TODO: dumb kludge (and overrides user's choice for main class)
+		if(ext.forgeCapabilities.requiresLaunchwrapper.get()) return "net.minecraft.launchwrapper.Launch";
+		else return mainClass;
+	}
+	
+	private void applyToolchainDefaults(LoomGradleExtension ext) {
+		//Toolchains nonsense
+		autoConfigureToolchains &= ext.autoConfigureToolchains;
+		if(autoConfigureToolchains) {
+			if(runToolchainVersion == null) runToolchainVersion = ext.defaultRunToolchainVersion;
+			if(runToolchainVendor == null) runToolchainVendor = ext.defaultRunToolchainVendor;
+		}
+	}
+	
 	/// Presets ///
 	
 	public void client() {
@@ -44,8 +44,18 @@ public class WellKnownLocations {
 		return mkdirs(getUserCache(project).resolve("layered-mappings"));
 	}
 	
-	//Added as a flatDir maven repo in LoomGradlePlugin.
-	public static Path getRemappedModCache(Project project) {
-		return mkdirs(getProjectCache(project).resolve("remapped-mods"));
+	//Stripped-down copies of remap classpath jars, keyed by content hash, so they're safe to share between projects.
+	public static Path getClasspathSkeletonCache(Project project) {
+		return mkdirs(getUserCache(project).resolve("classpath-skeletons"));
+	}
+	
+	//Per-class Fernflower output, keyed by a hash of the class (see SourcesCache), so it's safe to share between projects.
+	public static Path getDecompiledSourcesCache(Project project) {
+		return mkdirs(getUserCache(project).resolve("decompiled-sources"));
+	}
+	
+	//Maven artifacts unpacked from a voldeloomExportBundle archive. Added as a maven repo in LoomGradlePlugin.
+	public static Path getBundleRepository(Project project) {
+		return mkdirs(getUserCache(project).resolve("bundle-repo"));
 	}
 }
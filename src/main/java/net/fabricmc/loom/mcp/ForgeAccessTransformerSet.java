@@ -1,21 +1,26 @@
 package net.fabricmc.loom.mcp;
 
+import org.objectweb.asm.ClassReader;
 import org.objectweb.asm.ClassVisitor;
 import org.objectweb.asm.FieldVisitor;
 import org.objectweb.asm.MethodVisitor;
 import org.objectweb.asm.Opcodes;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
 import java.util.function.BiFunction;
 import java.util.function.IntUnaryOperator;
 
@@ -40,57 +45,188 @@ public class ForgeAccessTransformerSet {
 	
 	private final Set<String> touchedClasses = new HashSet<>(); //for optimization
 	
+	//The maps above are convenient for parsing, but need a string concatenation and a handful of hash lookups per member.
+	//Once everything's loaded they get compiled into one ClassPlan per touched class, so the visitor only does one lookup per class.
+	//Nulled out whenever another file is loaded.
+	private Map<String, ClassPlan> plans = null;
+	
 	//and for debugging:
 	private int count = 0;
-	private final Set<String> usedClassTransformers = new HashSet<>();
-	private final Set<String> usedWildcardFieldTransformers = new HashSet<>();
-	private final Set<String> usedFieldTransformers = new HashSet<>();
-	private final Set<String> usedWildcardMethodTransformers = new HashSet<>();
-	private final Set<String> usedMethodTransformers = new HashSet<>();
 	
 	public @Nonnull AccessTransformation getClassTransformation(String className) {
-		AccessTransformation classTransformation = classTransformers.get(className);
-		if(classTransformation != null) {
-			usedClassTransformers.add(className);
-			return classTransformation;
-		}
-		
-		return AccessTransformation.NO_CHANGE;
+		ClassPlan plan = getPlan(className);
+		return plan == null ? AccessTransformation.NO_CHANGE : plan.classTransformation();
 	}
 	
 	public @Nonnull AccessTransformation getFieldTransformation(String className, String fieldName) {
-		AccessTransformation wildcardFieldTransformation = wildcardFieldTransformers.get(className);
-		String key = className + "." + fieldName;
-		AccessTransformation fieldTransformation = fieldTransformers.get(key);
-		if(wildcardFieldTransformation != null) usedWildcardFieldTransformers.add(className);
-		if(fieldTransformation != null) usedFieldTransformers.add(key);
-		if (wildcardFieldTransformation == null) {
-			if (fieldTransformation != null)
-				return fieldTransformation;
-			return AccessTransformation.NO_CHANGE;
-		}
-		if (fieldTransformation != null)
-			return fieldTransformation.merge(wildcardFieldTransformation);
-		return wildcardFieldTransformation;
+		ClassPlan plan = getPlan(className);
+		return plan == null ? AccessTransformation.NO_CHANGE : plan.fieldTransformation(fieldName);
 	}
 	
 	public @Nonnull AccessTransformation getMethodTransformation(String className, String methodName, String methodDescriptor) {
-		AccessTransformation wildcardMethodTransformation = wildcardMethodTransformers.get(className);
-		String key = className + "." + methodName + methodDescriptor;
-		AccessTransformation methodTransformation = methodTransformers.get(key);
-		if(wildcardMethodTransformation != null) usedWildcardMethodTransformers.add(className);
-		if(methodTransformation != null) usedMethodTransformers.add(key);
-		if (wildcardMethodTransformation == null) {
-			if (methodTransformation != null)
-				return methodTransformation;
-			return AccessTransformation.NO_CHANGE;
+		ClassPlan plan = getPlan(className);
+		return plan == null ? AccessTransformation.NO_CHANGE : plan.methodTransformation(methodName, methodDescriptor);
+	}
+	
+	private ClassPlan getPlan(String className) {
+		if(plans == null) compile();
+		return plans.get(className);
+	}
+	
+	private void compile() {
+		//gather each member transformer under its owning class. Keys look like "class.member"; class names never contain a `.`
+		//(1.7-format names are normalized to internal names, and the 1.6 format is split on the first `.` anyway)
+		Map<String, List<String>> fieldKeysByClass = new HashMap<>();
+		for(String key : fieldTransformers.keySet()) {
+			fieldKeysByClass.computeIfAbsent(key.substring(0, key.indexOf('.')), __ -> new ArrayList<>()).add(key);
+		}
+		
+		Map<String, List<String>> methodKeysByClass = new HashMap<>();
+		for(String key : methodTransformers.keySet()) {
+			methodKeysByClass.computeIfAbsent(key.substring(0, key.indexOf('.')), __ -> new ArrayList<>()).add(key);
+		}
+		
+		plans = new HashMap<>();
+		for(String className : touchedClasses) {
+			List<String> fieldKeys = fieldKeysByClass.getOrDefault(className, Collections.emptyList());
+			List<String> methodKeys = methodKeysByClass.getOrDefault(className, Collections.emptyList());
+			
+			ClassPlan plan = new ClassPlan(className, fieldKeys.size(), methodKeys.size());
+			plan.classTransformer = classTransformers.get(className);
+			plan.wildcardFieldTransformer = wildcardFieldTransformers.get(className);
+			plan.wildcardMethodTransformer = wildcardMethodTransformers.get(className);
+			
+			for(int i = 0; i < fieldKeys.size(); i++) {
+				String key = fieldKeys.get(i);
+				plan.fieldNames[i] = key.substring(className.length() + 1);
+				plan.fieldTransformers[i] = fieldTransformers.get(key);
+			}
+			
+			for(int i = 0; i < methodKeys.size(); i++) {
+				String key = methodKeys.get(i);
+				String member = key.substring(className.length() + 1);
+				int paren = member.indexOf('(');
+				plan.methodNames[i] = member.substring(0, paren);
+				plan.methodDescs[i] = member.substring(paren);
+				plan.methodTransformers[i] = methodTransformers.get(key);
+			}
+			
+			plans.put(className, plan);
+		}
+	}
+	
+	/**
+	 * Summarizes the transformers affecting each touched class as a string. If two AT sets produce the same fingerprint
+	 * for a class, they transform that class identically, which is used to avoid re-transforming it when custom ATs are edited.
+	 */
+	public Map<String, String> fingerprintPlans() {
+		if(plans == null) compile();
+		
+		Map<String, String> fingerprints = new HashMap<>();
+		plans.forEach((className, plan) -> {
+			List<String> members = new ArrayList<>();
+			for(int i = 0; i < plan.fieldNames.length; i++) members.add("f " + plan.fieldNames[i] + " " + plan.fieldTransformers[i]);
+			for(int i = 0; i < plan.methodNames.length; i++) members.add("m " + plan.methodNames[i] + plan.methodDescs[i] + " " + plan.methodTransformers[i]);
+			Collections.sort(members);
+			
+			fingerprints.put(className, plan.classTransformer + " " + plan.wildcardFieldTransformer + " " + plan.wildcardMethodTransformer + " " + String.join(" ", members));
+		});
+		return fingerprints;
+	}
+	
+	/**
+	 * Every access transformer that applies to one class, laid out in small parallel arrays.
+	 * Member lookups are a linear scan comparing names and descriptors, which doesn't allocate, and is plenty fast
+	 * because even the most heavily-ATed classes only have a few dozen entries.
+	 * "Was this transformer ever used" is tracked in bitsets with the same indices.
+	 */
+	private static class ClassPlan {
+		ClassPlan(String className, int fieldCount, int methodCount) {
+			this.className = className;
+			this.fieldNames = new String[fieldCount];
+			this.fieldTransformers = new AccessTransformation[fieldCount];
+			this.methodNames = new String[methodCount];
+			this.methodDescs = new String[methodCount];
+			this.methodTransformers = new AccessTransformation[methodCount];
+		}
+		
+		final String className;
+		
+		AccessTransformation classTransformer; //nullable
+		boolean usedClassTransformer;
+		
+		AccessTransformation wildcardFieldTransformer; //nullable
+		boolean usedWildcardFieldTransformer;
+		final String[] fieldNames;
+		final AccessTransformation[] fieldTransformers;
+		final BitSet usedFieldTransformers = new BitSet();
+		
+		AccessTransformation wildcardMethodTransformer; //nullable
+		boolean usedWildcardMethodTransformer;
+		final String[] methodNames;
+		final String[] methodDescs;
+		final AccessTransformation[] methodTransformers;
+		final BitSet usedMethodTransformers = new BitSet();
+		
+		@Nonnull AccessTransformation classTransformation() {
+			if(classTransformer == null) return AccessTransformation.NO_CHANGE;
+			
+			usedClassTransformer = true;
+			return classTransformer;
+		}
+		
+		@Nonnull AccessTransformation fieldTransformation(String name) {
+			AccessTransformation fieldTransformation = null;
+			for(int i = 0; i < fieldNames.length; i++) {
+				if(fieldNames[i].equals(name)) {
+					fieldTransformation = fieldTransformers[i];
+					usedFieldTransformers.set(i);
+					break;
+				}
+			}
+			
+			return mergeWithWildcard(fieldTransformation, wildcardFieldTransformer, true);
+		}
+		
+		@Nonnull AccessTransformation methodTransformation(String name, String desc) {
+			AccessTransformation methodTransformation = null;
+			for(int i = 0; i < methodNames.length; i++) {
+				if(methodNames[i].equals(name) && methodDescs[i].equals(desc)) {
+					methodTransformation = methodTransformers[i];
+					usedMethodTransformers.set(i);
+					break;
+				}
+			}
+			
+			return mergeWithWildcard(methodTransformation, wildcardMethodTransformer, false);
+		}
+		
+		//Would the method, if it's private, stop being private? Unlike methodTransformation, doesn't count as using the transformer.
+		boolean opensPrivateMethod(String name, String desc) {
+			AccessTransformation transformation = wildcardMethodTransformer;
+			for(int i = 0; i < methodNames.length; i++) {
+				if(methodNames[i].equals(name) && methodDescs[i].equals(desc)) {
+					transformation = transformation == null ? methodTransformers[i] : methodTransformers[i].merge(transformation);
+					break;
+				}
+			}
+			
+			return transformation != null && (transformation.apply(Opcodes.ACC_PRIVATE) & Opcodes.ACC_PRIVATE) == 0;
+		}
+		
+		private @Nonnull AccessTransformation mergeWithWildcard(AccessTransformation specific, AccessTransformation wildcard, boolean field) {
+			if(wildcard == null) return specific == null ? AccessTransformation.NO_CHANGE : specific;
+			
+			if(field) usedWildcardFieldTransformer = true;
+			else usedWildcardMethodTransformer = true;
+			
+			return specific == null ? wildcard : specific.merge(wildcard);
 		}
-		if (methodTransformation != null)
-			return methodTransformation.merge(wildcardMethodTransformation);
-		return wildcardMethodTransformation;
 	}
 	
 	public void load(Path path, boolean mappedAccessTransformers) throws IOException {
+		plans = null;
+		
 		for(String line : Files.readAllLines(path)) {
 			line = line.split("#", 2)[0].trim(); //strip comments, extraneous whitespace
 			if(line.length() == 0 || line.startsWith("#")) continue; //skip empty lines
@@ -150,28 +286,58 @@ public class ForgeAccessTransformerSet {
 	public class AccessTransformingClassVisitor extends ClassVisitor implements Opcodes {
 		public AccessTransformingClassVisitor(ClassVisitor classVisitor) {
 			super(Opcodes.ASM7, classVisitor);
+			this.ownMethodRefs = null;
 		}
 		
+		/**
+		 * Pass the ClassReader this visitor will be accepted by, to peek at its constant pool ahead of time.
+		 * Unless the class calls one of its own private methods that an AT makes non-private, InvokeSpecialToInvokeVirtualVisitor
+		 * is not needed, and method bodies are passed straight through (so a ClassWriter sharing the reader can copy them verbatim).
+		 */
+		public AccessTransformingClassVisitor(ClassVisitor classVisitor, ClassReader reader) {
+			super(Opcodes.ASM7, classVisitor);
+			this.ownMethodRefs = ownMethodRefs(reader);
+		}
+		
+		private final @Nullable List<String[]> ownMethodRefs; //null if we don't know
 		private String visitingClass = "";
+		private ClassPlan visitingPlan = null; //null if there are no ATs for this class
 		private boolean visitingExtendableClass = false;
+		private boolean rewriteOwnCalls = false;
 		
 		public void visit(int version, int access, String name, String signature, String superName, String[] interfaces) {
-			int newAccess = getClassTransformation(name).apply(access);
+			visitingPlan = getPlan(name);
+			int newAccess = visitingPlan == null ? access : visitingPlan.classTransformation().apply(access);
 			
 			visitingClass = name;
 			visitingExtendableClass = (newAccess & (ACC_PRIVATE | ACC_FINAL)) == 0;
 			
+			//Without ATs on this class none of its private methods become overridable, and INVOKESPECIAL is still right.
+			//(Not knowing which methods the class calls, assume the worst.)
+			rewriteOwnCalls = false;
+			if(visitingPlan != null && visitingExtendableClass) {
+				if(ownMethodRefs == null) rewriteOwnCalls = true;
+				else for(String[] ref : ownMethodRefs) {
+					if(visitingPlan.opensPrivateMethod(ref[0], ref[1])) {
+						rewriteOwnCalls = true;
+						break;
+					}
+				}
+			}
+			
 			super.visit(version, newAccess, name, signature, superName, interfaces);
 		}
 		
 		public FieldVisitor visitField(int access, String name, String descriptor, String signature, Object value) {
-			return super.visitField(getFieldTransformation(visitingClass, name).apply(access), name, descriptor, signature, value);
+			int newAccess = visitingPlan == null ? access : visitingPlan.fieldTransformation(name).apply(access);
+			return super.visitField(newAccess, name, descriptor, signature, value);
 		}
 		
 		public MethodVisitor visitMethod(int access, String name, String descriptor, String signature, String[] exceptions) {
-			MethodVisitor sup = super.visitMethod(getMethodTransformation(visitingClass, name, descriptor).apply(access), name, descriptor, signature, exceptions);
+			int newAccess = visitingPlan == null ? access : visitingPlan.methodTransformation(name, descriptor).apply(access);
+			MethodVisitor sup = super.visitMethod(newAccess, name, descriptor, signature, exceptions);
 			
-			if(visitingExtendableClass) return new InvokeSpecialToInvokeVirtualVisitor(sup);
+			if(rewriteOwnCalls) return new InvokeSpecialToInvokeVirtualVisitor(sup);
 			else return sup;
 		}
 		
@@ -205,6 +371,29 @@ public class ForgeAccessTransformerSet {
 		}
 	}
 	
+	//Collects the name and descriptor of every CONSTANT_Methodref or CONSTANT_InterfaceMethodref that's owned by this class
+	//and isn't a constructor. Every INVOKESPECIAL instruction that InvokeSpecialToInvokeVirtualVisitor would rewrite refers to one.
+	private static List<String[]> ownMethodRefs(ClassReader reader) {
+		String className = reader.getClassName();
+		char[] buf = new char[reader.getMaxStringLength()];
+		List<String[]> refs = new ArrayList<>();
+		
+		for(int i = 1; i < reader.getItemCount(); i++) {
+			int offset = reader.getItem(i);
+			if(offset == 0) continue; //unused slot after a long/double
+			
+			int tag = reader.readByte(offset - 1);
+			if(tag != 10 && tag != 11) continue; //CONSTANT_Methodref, CONSTANT_InterfaceMethodref
+			
+			if(!className.equals(reader.readClass(offset, buf))) continue;
+			int nameAndType = reader.getItem(reader.readUnsignedShort(offset + 2));
+			String name = reader.readUTF8(nameAndType, buf);
+			if(!"<init>".equals(name)) refs.add(new String[] { name, reader.readUTF8(nameAndType + 2, buf) });
+		}
+		
+		return refs;
+	}
+	
 	private static final int ACCESS_MASK = (Opcodes.ACC_PUBLIC | Opcodes.ACC_PRIVATE | Opcodes.ACC_PROTECTED); // == 7
 	private static final int ACC_PACKAGE_PRIVATE = 0;
 
@@ -427,24 +616,44 @@ public class ForgeAccessTransformerSet {
 	}
 	
 	public List<String> reportUnusedTransformers() {
+		return reportUnusedTransformers(null);
+	}
+	
+	/**
+	 * @param onlyClasses if not {@code null}, only report on transformers targeting these classes (the ones that were actually visited)
+	 */
+	public List<String> reportUnusedTransformers(@Nullable Set<String> onlyClasses) {
 		List<String> report = new ArrayList<>();
+		if(plans == null) compile(); //nothing was transformed, so everything's unused
 		
-		reportUnused(classTransformers, usedClassTransformers, report, "class transformer");
-		
-		reportUnused(wildcardFieldTransformers, usedWildcardFieldTransformers, report, "wildcard field transformer");
-		reportUnused(fieldTransformers, usedFieldTransformers, report, "field transformer");
-		
-		reportUnused(wildcardMethodTransformers, usedWildcardMethodTransformers, report, "wildcard method transformer");
-		reportUnused(methodTransformers, usedMethodTransformers, report, "method transformer");
+		//sorted, to keep the report in a stable order
+		for(ClassPlan plan : new TreeMap<>(plans).values()) {
+			String className = plan.className;
+			if(onlyClasses != null && !onlyClasses.contains(className)) continue;
+			
+			if(plan.classTransformer != null && !plan.usedClassTransformer) {
+				reportUnused(report, "class transformer", plan.classTransformer, className);
+			}
+			
+			if(plan.wildcardFieldTransformer != null && !plan.usedWildcardFieldTransformer) {
+				reportUnused(report, "wildcard field transformer", plan.wildcardFieldTransformer, className);
+			}
+			for(int i = plan.usedFieldTransformers.nextClearBit(0); i < plan.fieldNames.length; i = plan.usedFieldTransformers.nextClearBit(i + 1)) {
+				reportUnused(report, "field transformer", plan.fieldTransformers[i], className + "." + plan.fieldNames[i]);
+			}
+			
+			if(plan.wildcardMethodTransformer != null && !plan.usedWildcardMethodTransformer) {
+				reportUnused(report, "wildcard method transformer", plan.wildcardMethodTransformer, className);
+			}
+			for(int i = plan.usedMethodTransformers.nextClearBit(0); i < plan.methodNames.length; i = plan.usedMethodTransformers.nextClearBit(i + 1)) {
+				reportUnused(report, "method transformer", plan.methodTransformers[i], className + "." + plan.methodNames[i] + plan.methodDescs[i]);
+			}
+		}
 		
 		return report;
 	}
 	
-	private void reportUnused(Map<String, AccessTransformation> wholeSet, Set<String> usedSet, List<String> report, String reportPrefix) {
-		wholeSet.forEach((key, transformation) -> {
-			if(usedSet.contains(key)) return; //continue
-			
-			report.add(String.format("Unused %s: %s %s", reportPrefix, transformation.toString(), key));
-		});
+	private void reportUnused(List<String> report, String reportPrefix, AccessTransformation transformation, String key) {
+		report.add(String.format("Unused %s: %s %s", reportPrefix, transformation.toString(), key));
 	}
 }
@@ -1,5 +1,6 @@
 package net.fabricmc.loom.mcp;
 
+import org.objectweb.asm.ClassReader;
 import org.objectweb.asm.ClassVisitor;
 import org.objectweb.asm.FieldVisitor;
 import org.objectweb.asm.MethodVisitor;
@@ -14,6 +15,37 @@ public class NaiveAsmSrgRenamer extends ClassVisitor implements Opcodes {
 	
 	private final Members fields, methods;
 	
+	/**
+	 * Scans the constant pool of a class, without visiting it, to see if this renamer would change anything.
+	 * If this returns {@code false}, no field name, method name, or string literal in the class is an SRG name
+	 * known to {@code fields} or {@code methods}, and the class can be copied through byte-for-byte.
+	 */
+	public static boolean wouldRename(ClassReader reader, Members fields, Members methods) {
+		NaiveTextualSrgRenamer textual = null;
+		
+		for(int i = 1; i < reader.getItemCount(); i++) {
+			int offset = reader.getItem(i);
+			if(offset == 0 || reader.readByte(offset - 1) != 1) continue; //unused slot after a long/double, or not a CONSTANT_Utf8
+			
+			//SRG names are plain ASCII, so no need to properly decode modified-UTF8 here; other bytes can't take part in a match
+			int length = reader.readUnsignedShort(offset);
+			char[] chars = new char[length];
+			for(int j = 0; j < length; j++) chars[j] = (char) reader.readByte(offset + 2 + j);
+			String utf8 = new String(chars);
+			
+			//field and method names (NaiveAsmSrgRenamer looks these up exactly)
+			if(fields.remapSrg(utf8) != null || methods.remapSrg(utf8) != null) return true;
+			
+			//string literals (NaiveAsmMethodVisitor.visitLdcInsn uses the textual renamer)
+			if(utf8.contains("func_") || utf8.contains("field_")) {
+				if(textual == null) textual = new NaiveTextualSrgRenamer(fields, methods);
+				if(!textual.rename(utf8).equals(utf8)) return true;
+			}
+		}
+		
+		return false;
+	}
+	
 	@Override
 	public FieldVisitor visitField(int access, String name, String descriptor, String signature, Object value) {
 		//fields
@@ -3,17 +3,21 @@ package net.fabricmc.loom.newprovider;
 import net.fabricmc.loom.Constants;
 import net.fabricmc.loom.LoomGradleExtension;
 import net.fabricmc.loom.mcp.ForgeAccessTransformerSet;
+import net.fabricmc.loom.util.AtomicFiles;
 import net.fabricmc.loom.util.Check;
 import net.fabricmc.loom.util.Checksum;
+import net.fabricmc.loom.util.Props;
 import net.fabricmc.loom.util.ZipUtil;
 import org.gradle.api.Project;
 import org.objectweb.asm.ClassReader;
 import org.objectweb.asm.ClassWriter;
 
+import javax.annotation.Nullable;
 import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.FileSystem;
 import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
@@ -21,9 +25,12 @@ import java.nio.file.Path;
 import java.nio.file.SimpleFileVisitor;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.security.MessageDigest;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.stream.Collectors;
 
@@ -38,6 +45,8 @@ public class AccessTransformer extends NewProvider<AccessTransformer> {
 		super(project, extension);
 	}
 	
+	private static final String ACCESS_TRANSFORMER_HASH = "accesstransformerhash";
+	
 	//inputs
 	private Path forgeJar;
 	private Path inputJar;
@@ -68,10 +77,36 @@ public class AccessTransformer extends NewProvider<AccessTransformer> {
 	private Set<Path> customAccessTransformers = new HashSet<>();
 	private Path transformedJar;
 	
+	//incremental stuff (see previousProps)
+	private @Nullable String previousAccessTransformerHash;
+	private @Nullable Set<String> changedEntries;
+	
 	public Path getTransformedJar() {
 		return transformedJar;
 	}
 	
+	/**
+	 * If the transformed jar was just created by patching the output of an earlier run with different custom ATs,
+	 * returns the names of the jar entries that differ from that run. Otherwise returns {@code null}.
+	 */
+	public @Nullable Set<String> getChangedEntries() {
+		return changedEntries;
+	}
+	
+	/**
+	 * If {@code getChangedEntries} is not {@code null}, returns a copy of {@code downstreamProps} (props of a provider
+	 * that used {@code superProps(this)}) as they were during that earlier run, so the provider can find its old output and
+	 * patch only the changed entries. Otherwise returns {@code null}.
+	 */
+	public @Nullable Props previousProps(Props downstreamProps) {
+		if(changedEntries == null) return null;
+		
+		Props previous = downstreamProps.copy();
+		if(previousAccessTransformerHash == null) previous.remove(ACCESS_TRANSFORMER_HASH);
+		else previous.put(ACCESS_TRANSFORMER_HASH, previousAccessTransformerHash);
+		return previous;
+	}
+	
 	public AccessTransformer loadCustomAccessTransformers() throws Exception {
 		customAccessTransformers = getConfigurationByName(Constants.CUSTOM_ACCESS_TRANSFORMERS)
 			.resolve()
@@ -87,7 +122,7 @@ public class AccessTransformer extends NewProvider<AccessTransformer> {
 				readersDigest.update((byte) 0);
 			}
 			
-			props.put("accesstransformerhash", Checksum.toHexString(readersDigest.digest()));
+			props.put(ACCESS_TRANSFORMER_HASH, Checksum.toHexString(readersDigest.digest()));
 		}
 		
 		return this;
@@ -97,6 +132,10 @@ public class AccessTransformer extends NewProvider<AccessTransformer> {
 		Check.notNull(forgeJar, "forge version");
 		Check.notNull(inputJar, "jarmod");
 		
+		//Remembers which AT set was last used to transform this input jar, and the effective transformation of each class.
+		//Named after our props *without* the custom AT hash, so every edit to the custom ATs of this jar shares the same file.
+		Path lastRunFile = getCacheDir().resolve("at-last-run").resolve(props.copy().remove(ACCESS_TRANSFORMER_HASH).subst(transformedFilename) + ".txt");
+		
 		transformedJar = getOrCreate(getCacheDir().resolve(props.subst(transformedFilename)), dest -> {
 			log.lifecycle("|-> Access-transformed jar does not exist, parsing Forge's access transformers...");
 			
@@ -133,9 +172,48 @@ public class AccessTransformer extends NewProvider<AccessTransformer> {
 				log.info("\\-> After incorporationg custom ATs, there are {} access transformers affecting {} classes.", ats.getCount(), ats.getTouchedClassCount());
 			}
 			
+			//Is there an earlier run that we can patch, instead of transforming everything again?
+			Map<String, String> fingerprints = ats.fingerprintPlans();
+			Path previousJar = null;
+			Set<String> changedClasses = null;
+			List<String> lastRun = isRefreshDependencies() ? null : readLastRun(lastRunFile);
+			if(lastRun != null) {
+				String lastHash = lastRun.get(0).isEmpty() ? null : lastRun.get(0);
+				
+				Props lastProps = props.copy();
+				if(lastHash == null) lastProps.remove(ACCESS_TRANSFORMER_HASH);
+				else lastProps.put(ACCESS_TRANSFORMER_HASH, lastHash);
+				Path lastJar = getCacheDir().resolve(lastProps.subst(transformedFilename));
+				
+				if(Files.exists(lastJar)) {
+					Map<String, String> lastFingerprints = new HashMap<>();
+					for(String line : lastRun.subList(1, lastRun.size())) {
+						String[] split = line.split("\t", 2);
+						lastFingerprints.put(split[0], split[1]);
+					}
+					
+					//classes whose transformation changed, including ones that gained or lost all their ATs
+					changedClasses = new HashSet<>();
+					for(String className : fingerprints.keySet()) {
+						if(!fingerprints.get(className).equals(lastFingerprints.get(className))) changedClasses.add(className);
+					}
+					for(String className : lastFingerprints.keySet()) {
+						if(!fingerprints.containsKey(className)) changedClasses.add(className);
+					}
+					
+					previousJar = lastJar;
+					previousAccessTransformerHash = lastHash;
+					log.lifecycle("|-> Patching the access-transformed jar from an earlier run ({}); {} classes have different transformations.", lastJar, changedClasses.size());
+				}
+			}
+			
 			log.info("|-> Performing transform...");
 			
-			try(FileSystem unAccessTransformedFs = ZipUtil.openFs(inputJar); FileSystem accessTransformedFs = ZipUtil.createFs(dest)) {
+			Set<String> finalChangedClasses = changedClasses;
+			Set<String> changedEntries = new HashSet<>();
+			try(FileSystem unAccessTransformedFs = ZipUtil.openFs(inputJar);
+			    FileSystem previousFs = previousJar == null ? null : ZipUtil.openFs(previousJar);
+			    FileSystem accessTransformedFs = ZipUtil.createFs(dest)) {
 				Files.walkFileTree(unAccessTransformedFs.getPath("/"), new SimpleFileVisitor<Path>() {
 					@Override
 					public FileVisitResult visitFile(Path srcPath, BasicFileAttributes attrs) throws IOException {
@@ -151,13 +229,25 @@ public class AccessTransformer extends NewProvider<AccessTransformer> {
 							
 							log.debug("Visiting class {}", className);
 							
+							if(previousFs != null) {
+								Path previousPath = previousFs.getPath(srcPath.toString());
+								if(!finalChangedClasses.contains(className) && Files.exists(previousPath)) {
+									//transformed exactly the same way last time
+									Files.copy(previousPath, dstPath);
+									return FileVisitResult.CONTINUE;
+								}
+								
+								changedEntries.add(srcPath.toString());
+							}
+							
 							if(ats.touchesClass(className)) {
 								log.debug("There's an access transformer for {}", className);
 								
 								try(InputStream srcReader = new BufferedInputStream((Files.newInputStream(srcPath)))) {
+									//Sharing the reader lets ASM copy the constant pool, and the bytecode of any method we don't touch, verbatim
 									ClassReader srcClassReader = new ClassReader(srcReader);
-									ClassWriter dstClassWriter = new ClassWriter(0);
-									srcClassReader.accept(ats.new AccessTransformingClassVisitor(dstClassWriter), 0);
+									ClassWriter dstClassWriter = new ClassWriter(srcClassReader, 0);
+									srcClassReader.accept(ats.new AccessTransformingClassVisitor(dstClassWriter, srcClassReader), 0);
 									Files.write(dstPath, dstClassWriter.toByteArray());
 								}
 								
@@ -175,14 +265,55 @@ public class AccessTransformer extends NewProvider<AccessTransformer> {
 			
 			log.info("|-> Access transformation success! :)");
 			
-			List<String> unusedAtsReport = ats.reportUnusedTransformers();
+			//when patching, only the changed classes were visited; the rest were reported on last time
+			List<String> unusedAtsReport = ats.reportUnusedTransformers(changedClasses);
 			if(!unusedAtsReport.isEmpty()) {
 				log.warn("|-> Found {} unused access transformers.", unusedAtsReport.size());
 				unusedAtsReport.forEach(log::warn);
 			}
+			
+			if(previousJar != null) this.changedEntries = changedEntries;
+			
+			List<String> thisRun = new ArrayList<>();
+			thisRun.add(props.has(ACCESS_TRANSFORMER_HASH) ? props.get(ACCESS_TRANSFORMER_HASH) : "");
+			fingerprints.forEach((className, fingerprint) -> thisRun.add(className + "\t" + fingerprint));
+			//other projects (and other Gradle daemons) with the same Minecraft/Forge/mappings share this file
+			Files.createDirectories(lastRunFile.getParent());
+			Path tmp = AtomicFiles.tempSibling(lastRunFile);
+			try {
+				Files.write(tmp, thisRun, StandardCharsets.UTF_8);
+				AtomicFiles.publish(tmp, lastRunFile);
+			} finally {
+				Files.deleteIfExists(tmp);
+			}
 		});
 		log.lifecycle("] access-transformed jar: {}", transformedJar);
 		
 		return this;
 	}
+	
+	//Null if there's no usable earlier run. A file that's empty or garbled somehow just means transforming everything again.
+	private @Nullable List<String> readLastRun(Path lastRunFile) {
+		if(Files.notExists(lastRunFile)) return null;
+		
+		List<String> lastRun;
+		try {
+			lastRun = Files.readAllLines(lastRunFile, StandardCharsets.UTF_8);
+		} catch (IOException e) {
+			log.info("\\-> Couldn't read {}, transforming everything: {}", lastRunFile, e.getMessage());
+			return null;
+		}
+		
+		boolean ok = !lastRun.isEmpty() && !lastRun.get(0).contains("\t");
+		for(int i = 1; ok && i < lastRun.size(); i++) {
+			int tab = lastRun.get(i).indexOf('\t');
+			ok = tab > 0 && tab < lastRun.get(i).length() - 1;
+		}
+		if(!ok) {
+			log.info("\\-> {} is malformed, transforming everything", lastRunFile);
+			return null;
+		}
+		
+		return lastRun;
+	}
 }
@@ -24,20 +24,33 @@
 
 package net.fabricmc.loom.newprovider;
 
-import com.google.gson.Gson;
-import com.google.gson.JsonObject;
+import com.google.gson.stream.JsonReader;
 import net.fabricmc.loom.LoomGradleExtension;
+import net.fabricmc.loom.util.AtomicFiles;
+import net.fabricmc.loom.util.Checksum;
+import net.fabricmc.loom.util.DownloadQueue;
+import net.fabricmc.loom.util.FileLinks;
 import net.fabricmc.loom.util.VersionManifest;
 import org.gradle.api.Project;
 
-import java.io.BufferedReader;
+import java.io.IOException;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.LinkOption;
 import java.nio.file.Path;
+import java.util.EnumMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
 
 /**
  * Downloads Minecraft's global asset index, the asset index for the selected version, and downloads all assets inside that index.
  * Results go into the Gradle user cache.
+ * <p>
+ * Every asset is downloaded exactly once, into the hash-addressed {@code objects} store that 1.7+ reads directly.
+ * Versions that want the older "filename" layout get a {@code legacy/(index id)} directory made out of links into the store,
+ * so the same sound file isn't downloaded and stored again for every asset index that mentions it.
  */
 public class AssetDownloader extends NewProvider<AssetDownloader> {
 	public AssetDownloader(Project project, LoomGradleExtension extension) {
@@ -52,6 +65,7 @@ public class AssetDownloader extends NewProvider<AssetDownloader> {
 	private Path assetIndexJson;
 	private Path finishedFlag;
 	private Path assetsDownloadDir;
+	private Path assetsObjectStore;
 	private Path assetsGameRoot;
 	private boolean legacyLayout;
 	
@@ -81,7 +95,7 @@ public class AssetDownloader extends NewProvider<AssetDownloader> {
 		Path assetsCache = getCacheDir().resolve("assets");
 		
 		assetIndexJson = assetsCache.resolve("indexes").resolve(versionManifest.assetIndexReference.id + ".json");
-		finishedFlag = assetIndexJson.resolveSibling(assetIndexJson.getFileName().toString() + ".volde-dl-finished");
+		finishedFlag = assetIndexJson.resolveSibling(assetIndexJson.getFileName().toString() + ".volde-dl-finished-v2"); //v2: since assets moved into the shared object store
 		
 		//Let's not delete the assets themselves on refreshDependencies.
 		//They're rarely the problem, and take a long time to download.
@@ -97,25 +111,29 @@ public class AssetDownloader extends NewProvider<AssetDownloader> {
 			//.skipIfExists()
 			.download();
 		
-		//parse it as json
-		JsonObject assets;
-		try(BufferedReader in = Files.newBufferedReader(assetIndexJson)) {
-			assets = new Gson().fromJson(in, JsonObject.class);
-		}
-		
 		//find what layout it's in
-		legacyLayout =
-			//Every version other than 1.6:
-			(assets.has("map_to_resources") && assets.getAsJsonPrimitive("map_to_resources").getAsBoolean()) ||
-			//1.6, for some reason:
-			(assets.has("virtual") && assets.getAsJsonPrimitive("virtual").getAsBoolean());
+		//(read with a streaming parser, skipping over the big "objects" map; only a couple of top-level flags are needed here)
+		boolean mapToResources = false, virtual = false;
+		try(JsonReader in = new JsonReader(Files.newBufferedReader(assetIndexJson))) {
+			in.beginObject();
+			while(in.hasNext()) {
+				switch(in.nextName()) {
+					case "map_to_resources": mapToResources = in.nextBoolean(); break; //Every version other than 1.6
+					case "virtual": virtual = in.nextBoolean(); break; //1.6, for some reason
+					default: in.skipValue();
+				}
+			}
+			in.endObject();
+		}
+		legacyLayout = mapToResources || virtual;
 		
 		//decide what directory to put the output artifacts in
+		assetsObjectStore = assetsCache.resolve("objects");
 		if(legacyLayout) {
 			assetsDownloadDir = assetsCache.resolve("legacy").resolve(versionManifest.assetIndexReference.id);
 			assetsGameRoot = assetsDownloadDir;
 		} else {
-			assetsDownloadDir = assetsCache.resolve("objects");
+			assetsDownloadDir = assetsObjectStore;
 			assetsGameRoot = assetsCache; //non-legacy layout games (1.7+) parse the asset index internally
 		}
 		
@@ -125,53 +143,108 @@ public class AssetDownloader extends NewProvider<AssetDownloader> {
 	public AssetDownloader downloadAssets() throws Exception {
 		if(Files.exists(finishedFlag)) return this; //nothing to do
 		
-		//parse it as json again! (this avoids having to hold `assets` in memory across prepare/downloadAssets, 99% of the time it is wasted ram)
-		JsonObject assets;
-		try(BufferedReader in = Files.newBufferedReader(assetIndexJson)) {
-			assets = new Gson().fromJson(in, JsonObject.class);
-		}
-		
 		log.lifecycle("|-> Downloading assets to {}...", assetsDownloadDir);
-		JsonObject objects = assets.getAsJsonObject("objects");
 		
-		//<logging>
-		int assetCount = objects.size();
-		log.lifecycle("|-> Found {} assets to download.", assetCount);
-		int downloadedCount = 0, nextLogCount = 0, logCount = 0;
-		//</logging>
-		
-		for(String filename : objects.keySet()) {
-			String sha1 = objects.get(filename).getAsJsonObject().get("hash").getAsString();
+		//Streams through the index, handing each missing asset to the queue as soon as it's read, so downloads start
+		//before the index is done being parsed and the index is never all in memory at once.
+		DownloadQueue queue = newDownloadQueue();
+		int[] assetCount = new int[] { 0 };
+		//lots of index entries share a hash (same sound under several names, etc), and they'd all race on the same object
+		Set<String> queuedHashes = new HashSet<>();
+		forEachAsset(assetIndexJson, (filename, sha1, size) -> {
+			assetCount[0]++;
 			String sh = sha1.substring(0, 2);
 			String shsha1 = sh + '/' + sha1;
 			
-			Path destFile = legacyLayout ?
-				assetsDownloadDir.resolve(filename) :
-				assetsDownloadDir.resolve(sh).resolve(sha1);
+			Path destFile = assetsObjectStore.resolve(sh).resolve(sha1);
+			
+			//Legacy directories used to hold real files. If this one already has the asset, move it into the store instead of
+			//downloading it again, and link it back. (Not the other way around: if the store's copy was a symlink into legacy/,
+			//deleting the legacy directory would break every other version sharing it.)
+			if(legacyLayout && Files.notExists(destFile)) {
+				Path legacyFile = assetsDownloadDir.resolve(filename);
+				if(Files.isRegularFile(legacyFile, LinkOption.NOFOLLOW_LINKS) && Checksum.compareFileHexHash(legacyFile, sha1, Checksum.SHA1.get())) {
+					Files.createDirectories(destFile.getParent());
+					AtomicFiles.publish(legacyFile, destFile);
+					FileLinks.linkOrCopy(destFile, legacyFile);
+				}
+			}
 			
-			if(Files.notExists(destFile)) {
-				newDownloadSession(resourcesBaseUrl + shsha1)
+			if(Files.notExists(destFile) && queuedHashes.add(sha1)) {
+				queue.add(newDownloadSession(resourcesBaseUrl + shsha1)
 					.quiet()
 					.dest(destFile)
 					.gzip(true)
 					.etag(false) //we're hopefully not gonna be redownloading these
-					.skipIfExists()
-					.download();
-			}
-			
-			//<logging>
-			downloadedCount++;
-			if(downloadedCount >= nextLogCount) {
-				log.lifecycle("\\-> " + logCount * 10 + "%...");
-				logCount++;
-				nextLogCount = logCount * assetCount / 10;
+					.expectSha1(sha1)
+					.expectSize(size)
+					.skipIfExists());
 			}
-			//</logging>
+		});
+		
+		log.lifecycle("|-> Found {} assets, {} not downloaded yet.", assetCount[0], queue.size());
+		queue.downloadAll("assets");
+		
+		if(legacyLayout) {
+			log.lifecycle("|-> Linking assets into the legacy layout at {}...", assetsDownloadDir);
+			Map<FileLinks.Kind, Integer> kinds = new EnumMap<>(FileLinks.Kind.class);
+			forEachAsset(assetIndexJson, (filename, sha1, size) -> {
+				FileLinks.Kind kind = FileLinks.linkOrCopy(assetsObjectStore.resolve(sha1.substring(0, 2)).resolve(sha1), assetsDownloadDir.resolve(filename));
+				kinds.merge(kind, 1, Integer::sum);
+			});
+			log.info("|-> Done: {}", kinds);
 		}
-		log.info("|-> Done!");
 		
 		Files.write(finishedFlag, "The presence of this file tells Voldeloom that it's finished downloading assets.".getBytes(StandardCharsets.UTF_8));
 		
 		return this;
 	}
+	
+	/**
+	 * Every asset in the index, by its path in the legacy "filename" layout, mapped to where it is in the object store.
+	 * Only meaningful after {@code downloadAssets}.
+	 */
+	public Map<String, Path> getAssetObjects() throws IOException {
+		Map<String, Path> objects = new LinkedHashMap<>();
+		forEachAsset(assetIndexJson, (filename, sha1, size) -> objects.put(filename, assetsObjectStore.resolve(sha1.substring(0, 2)).resolve(sha1)));
+		return objects;
+	}
+	
+	private interface AssetConsumer {
+		void accept(String filename, String sha1, long size) throws IOException;
+	}
+	
+	private static void forEachAsset(Path assetIndexJson, AssetConsumer consumer) throws IOException {
+		try(JsonReader in = new JsonReader(Files.newBufferedReader(assetIndexJson))) {
+			in.beginObject();
+			while(in.hasNext()) {
+				if(!in.nextName().equals("objects")) {
+					in.skipValue();
+					continue;
+				}
+				
+				in.beginObject();
+				while(in.hasNext()) {
+					String filename = in.nextName();
+					String sha1 = null;
+					long size = -1;
+					
+					in.beginObject();
+					while(in.hasNext()) {
+						switch(in.nextName()) {
+							case "hash": sha1 = in.nextString(); break;
+							case "size": size = in.nextLong(); break;
+							default: in.skipValue();
+						}
+					}
+					in.endObject();
+					
+					if(sha1 == null) throw new IOException("Asset " + filename + " in " + assetIndexJson + " has no hash");
+					consumer.accept(filename, sha1, size);
+				}
+				in.endObject();
+			}
+			in.endObject();
+		}
+	}
 }
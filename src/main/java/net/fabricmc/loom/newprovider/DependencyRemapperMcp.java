@@ -5,6 +5,9 @@ import net.fabricmc.loom.LoomGradleExtension;
 import net.fabricmc.loom.RemappedConfigurationEntry;
 import net.fabricmc.loom.mcp.Members;
 import net.fabricmc.loom.mcp.Srg;
+import net.fabricmc.loom.util.AtomicFiles;
+import net.fabricmc.loom.util.Checksum;
+import net.fabricmc.loom.util.Props;
 import org.gradle.api.Project;
 import org.gradle.api.artifacts.Configuration;
 import org.gradle.api.artifacts.dsl.DependencyHandler;
@@ -12,10 +15,21 @@ import org.gradle.api.artifacts.dsl.DependencyHandler;
 import java.io.File;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 public class DependencyRemapperMcp extends NewProvider<DependencyRemapperMcp> {
 	public DependencyRemapperMcp(Project project, LoomGradleExtension extension) {
@@ -56,6 +70,7 @@ public class DependencyRemapperMcp extends NewProvider<DependencyRemapperMcp> {
 	
 	public DependencyRemapperMcp distributionNamingScheme(String distributionNamingScheme) {
 		this.distributionNamingScheme = distributionNamingScheme;
+		props.put("distributionNamingScheme", distributionNamingScheme);
 		return this;
 	}
 	
@@ -68,55 +83,153 @@ public class DependencyRemapperMcp extends NewProvider<DependencyRemapperMcp> {
 		return addToRemapClasspath(Arrays.asList(paths));
 	}
 	
+	/**
+	 * Hooks each remapped configuration entry's output configuration up to a lazily-computed file collection, which
+	 * resolves the input configuration and remaps its contents the first time something asks for the files.
+	 * Configurations that nobody resolves in this build (say, {@code modCompileOnly} when you're only doing {@code runServer})
+	 * are never remapped, and configuration time doesn't grow with the number of mod dependencies.
+	 */
 	public DependencyRemapperMcp doIt(DependencyHandler deps) throws Exception {
-		Path remappedModCache = getRemappedModCache();
-		cleanOnRefreshDependencies(remappedModCache);
-		
 		for(RemappedConfigurationEntry entry : remappedConfigurationEntries) {
-			Configuration inputConfig = entry.getInputConfig();
 			Configuration outputConfig = entry.getOutputConfig();
 			
-			for(File unmappedFile : inputConfig.getResolvedConfiguration().getFiles()) {
-				Path unmappedPath = unmappedFile.toPath();
-				Path mappedPath = remappedModCache.resolve(unmappedPath.getFileName().toString() + "-mapped-" + mappingsDepString + ".jar");
-				
-				log.info("|-> Found a mod dependency at {}", unmappedPath);
-				log.info("\\-> Need to remap to {}", mappedPath);
+			log.info("|-> Mods in {} will be remapped into {} when it is resolved", entry.getInputConfig().getName(), outputConfig.getName());
+			deps.add(outputConfig.getName(), files((Callable<List<File>>) () -> remapEntry(entry)));
+		}
+		
+		return this;
+	}
+	
+	//Gradle evaluates the file collection every time it's queried, but the remapping only needs to happen once
+	private final Map<RemappedConfigurationEntry, List<File>> remappedEntries = new HashMap<>();
+	private final Set<Path> refreshedMappedPaths = new HashSet<>();
+	
+	private synchronized List<File> remapEntry(RemappedConfigurationEntry entry) throws Exception {
+		List<File> known = remappedEntries.get(entry);
+		if(known != null) return known;
+		
+		List<Path> unmapped = new ArrayList<>();
+		for(File unmappedFile : entry.getInputConfig().getResolvedConfiguration().getFiles()) unmapped.add(unmappedFile.toPath());
+		
+		log.lifecycle(":remapping {} mod dependenc{} from {}", unmapped.size(), unmapped.size() == 1 ? "y" : "ies", entry.getInputConfig().getName());
+		
+		List<File> result = new ArrayList<>();
+		for(Path mapped : remap(unmapped).values()) result.add(mapped.toFile());
+		
+		remappedEntries.put(entry, result);
+		return result;
+	}
+	
+	/**
+	 * Returns a map from each unmapped mod to its remapped copy, remapping any that aren't in the cache yet.
+	 */
+	private Map<Path, Path> remap(Collection<Path> unmappedPaths) throws Exception {
+		//Remapped mods go in the user cache, keyed by the content of the mod jar and our props (mappings, naming scheme,
+		//and everything about the Minecraft jar they're remapped against), so they can be shared between projects.
+		Path remappedModCache = getCacheDir().resolve("remapped-mods").resolve(mappingsDepString);
+		Files.createDirectories(remappedModCache);
+		
+		//First pass: figure out where everything goes, and which jars still need remapping.
+		Map<Path, Path> mappedPaths = new LinkedHashMap<>(); //unmapped -> fully named
+		for(Path unmappedPath : unmappedPaths) {
+			if(mappedPaths.containsKey(unmappedPath)) continue;
+			
+			Props modProps = props.copy().put("modsha1", Checksum.fileHexHash(unmappedPath, Checksum.SHA1.get()));
+			Path mappedPath = remappedModCache.resolve(modProps.subst(stem(unmappedPath) + "-mapped-{HASH}.jar"));
+			mappedPaths.put(unmappedPath, mappedPath);
+			
+			log.info("|-> Found a mod dependency at {}", unmappedPath);
+			log.info("\\-> Mapped copy lives at {}", mappedPath);
+		}
+		
+		//(the global cache is shared, so don't delete the whole thing like the old per-project cache did, just our own jars)
+		//(and only once per build, in case the same mod turns up in more than one configuration)
+		if(isRefreshDependencies()) {
+			for(Path mappedPath : mappedPaths.values()) {
+				if(refreshedMappedPaths.add(mappedPath)) Files.deleteIfExists(mappedPath);
+			}
+		}
+		
+		Map<Path, Path> srgMappedPaths = new LinkedHashMap<>(); //unmapped -> srg-named (may be the same path, if no tiny-remapper pass is needed)
+		for(Map.Entry<Path, Path> entry : mappedPaths.entrySet()) {
+			Path unmappedPath = entry.getKey(), mappedPath = entry.getValue();
+			if(Files.exists(mappedPath)) continue;
+			
+			//If mods are distributed proguarded, first run them through tiny-remapper to apply srg names
+			if(distributionNamingScheme.equals(Constants.INTERMEDIATE_NAMING_SCHEME)) {
+				log.info("\\-> distributionNamingScheme == Constants.INTERMEDIATE_NAMING_SCHEME, not applying tiny-remapper to {}", unmappedPath);
+				srgMappedPaths.put(unmappedPath, unmappedPath);
+			} else if(distributionNamingScheme.equals(Constants.PROGUARDED_NAMING_SCHEME)) {
+				//temporary file, deleted once the named jar exists
+				srgMappedPaths.put(unmappedPath, AtomicFiles.tempSibling(mappedPath.resolveSibling(mappedPath.getFileName().toString().replace("-mapped-", "-srg-"))));
+			} else {
+				throw new IllegalArgumentException("Unknown distributionNamingScheme... i should make than an enum");
+			}
+		}
+		
+		if(!srgMappedPaths.isEmpty()) {
+			log.lifecycle("|-> {} mod dependenc{} not in the remapped mod cache", srgMappedPaths.size(), srgMappedPaths.size() == 1 ? "y is" : "ies are");
+			
+			//Second pass: map everything that needs it to SRG, all in one tiny-remapper session.
+			//The mods being remapped can see each other since they're all inputs; any other mods go on the classpath.
+			Map<Path, Path> needsTinyRemapper = new LinkedHashMap<>();
+			srgMappedPaths.forEach((unmapped, srgMapped) -> {
+				if(!unmapped.equals(srgMapped)) needsTinyRemapper.put(unmapped, srgMapped);
+			});
+			
+			try {
+				if(!needsTinyRemapper.isEmpty()) {
+					log.lifecycle("|-> Mapping {} mod dependenc{} to SRG using tiny-remapper", needsTinyRemapper.size(), needsTinyRemapper.size() == 1 ? "y" : "ies");
+					
+					Set<Path> remapClasspathIncludingOtherMods = new LinkedHashSet<>(remapClasspath);
+					for(File file : getConfigurationByName(Constants.EVERY_UNMAPPED_MOD).getFiles()) {
+						Path p = file.toPath();
+						if(!needsTinyRemapper.containsKey(p)) remapClasspathIncludingOtherMods.add(p);
+					}
+					
+					RemapperMcp.doItBatch(needsTinyRemapper, srg, log, newClasspathSkeletons().skeletonize(remapClasspathIncludingOtherMods));
+				}
 				
-				if(Files.notExists(mappedPath)) {
-					//If mods are distributed proguarded, first run them through tiny-remapper to apply srg names
-					Path srgMappedPath;
-					if(distributionNamingScheme.equals(Constants.INTERMEDIATE_NAMING_SCHEME)) {
-						log.info("\\-> distributionNamingScheme == Constants.INTERMEDIATE_NAMING_SCHEME, not applying tiny-remapper");
-						srgMappedPath = unmappedPath;
-					} else if(distributionNamingScheme.equals(Constants.PROGUARDED_NAMING_SCHEME)) {
-						srgMappedPath = remappedModCache.resolve(unmappedPath.getFileName().toString() + "-srg-" + mappingsDepString + ".jar");
-						
-						log.info("\\-> First, mapping to SRG using tiny-remapper at {}", srgMappedPath);
+				//Third pass: apply the fields.csv and methods.csv transformation, just like vanilla.
+				//Each jar is independent, so do them all at once.
+				int threads = Math.max(1, Math.min(srgMappedPaths.size(), Runtime.getRuntime().availableProcessors()));
+				ExecutorService pool = Executors.newFixedThreadPool(threads);
+				try {
+					List<Future<?>> futures = new ArrayList<>();
+					srgMappedPaths.forEach((unmappedPath, srgMappedPath) -> futures.add(pool.submit(() -> {
+						Path mappedPath = mappedPaths.get(unmappedPath);
+						Path tmp = AtomicFiles.tempSibling(mappedPath);
 						
-						//add the other mod dependencies to the remap classpath
-						Set<Path> remapClasspathIncludingOtherMods = new LinkedHashSet<>(remapClasspath);
-						for(File file : getConfigurationByName(Constants.EVERY_UNMAPPED_MOD).getFiles()) {
-							Path p = file.toPath();
-							if(!p.equals(unmappedPath)) remapClasspathIncludingOtherMods.add(p);
+						log.info("\\-> Applying NaiveRenamer to {}...", unmappedPath);
+						try {
+							NaiveRenamer.doIt(srgMappedPath, tmp, log, fields, methods);
+							AtomicFiles.publish(tmp, mappedPath);
+						} finally {
+							Files.deleteIfExists(tmp);
 						}
-						
-						RemapperMcp.doIt(unmappedPath, srgMappedPath, srg, log, null, remapClasspathIncludingOtherMods);
-					} else {
-						throw new IllegalArgumentException("Unknown distributionNamingScheme... i should make than an enum");
-					}
+						return null;
+					})));
 					
-					//Then apply the fields.csv and methods.csv transformation, just like vanilla
-					log.info("\\-> Applying NaiveRenamer...");
-					NaiveRenamer.doIt(srgMappedPath, mappedPath, log, fields, methods);
+					for(Future<?> future : futures) {
+						try {
+							future.get();
+						} catch (ExecutionException e) {
+							throw new RuntimeException("Failed to remap a mod dependency", e.getCause());
+						}
+					}
+				} finally {
+					pool.shutdownNow();
 				}
-				
-				//Finally, install this jar to the dependencies (TODO break this out into a separate pass, i'm lazy)
-				log.info("\\-> Installing to {} configuration", outputConfig.getName());
-				deps.add(outputConfig.getName(), files(mappedPath));
+			} finally {
+				for(Path srgMappedPath : needsTinyRemapper.values()) Files.deleteIfExists(srgMappedPath);
 			}
 		}
 		
-		return this;
+		return mappedPaths;
+	}
+	
+	private static String stem(Path jar) {
+		String name = jar.getFileName().toString();
+		return name.endsWith(".jar") ? name.substring(0, name.length() - 4) : name;
 	}
 }
@@ -1,7 +1,10 @@
 package net.fabricmc.loom.newprovider;
 
 import net.fabricmc.loom.LoomGradleExtension;
+import net.fabricmc.loom.util.AtomicFiles;
 import net.fabricmc.loom.util.Check;
+import net.fabricmc.loom.util.Checksum;
+import net.fabricmc.loom.util.DownloadQueue;
 import net.fabricmc.loom.util.OperatingSystem;
 import net.fabricmc.loom.util.VersionManifest;
 import net.fabricmc.loom.util.ZipUtil;
@@ -13,16 +16,25 @@ import org.objectweb.asm.MethodVisitor;
 import org.objectweb.asm.Opcodes;
 
 import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.FileSystem;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Pattern;
 
 /**
  * Forge auto-downloads dependencies at runtime, but the server is long dead, and I'd like to know about the
  * dependencies when creating the workspace. This sniffs Forge's dependencies out of the Forge jar with a little
  * static-analysis.
+ * <p>
+ * The results of sniffing are cached in the user cache, keyed by the Forge jar's hash, so the Forge jar only has to be
+ * opened once.
  */
 public class ForgeDependencyFetcher extends NewProvider<ForgeDependencyFetcher> {
 	public ForgeDependencyFetcher(Project project, LoomGradleExtension extension) {
@@ -53,8 +65,10 @@ public class ForgeDependencyFetcher extends NewProvider<ForgeDependencyFetcher>
 	private Path libDownloaderDir;
 	
 	private final Collection<String> sniffedLibDownloaderJarNames = new ArrayList<>();
+	private final Map<String, String> sniffedLibDownloaderSha1s = new HashMap<>();
 	private final Collection<Path> resolvedLibDownloaderJars = new ArrayList<>();
 	private final Collection<String> sniffedMavenDepNames = new ArrayList<>();
+	private Path sniffCache;
 	
 	public ForgeDependencyFetcher libDownloaderDir(String extractedLibrariesDirname) {
 		this.libDownloaderDir = getCacheDir().resolve("forgeLibs").resolve(extractedLibrariesDirname);
@@ -65,6 +79,52 @@ public class ForgeDependencyFetcher extends NewProvider<ForgeDependencyFetcher>
 	public ForgeDependencyFetcher sniff() throws Exception {
 		Check.notNull(forgeJar, "forge jar");
 		
+		String forgeJarSha1 = Checksum.fileHexHash(forgeJar, Checksum.SHA1.get());
+		sniffCache = getOrCreate(getCacheDir().resolve("forgeLibs").resolve("sniffed").resolve(forgeJarSha1 + "-" + SNIFF_FORMAT + ".txt"), dest -> {
+			List<String> lines = new ArrayList<>();
+			lines.add("# Forge libraries sniffed out of " + forgeJar.getFileName()); //also makes sure the file isn't empty
+			sniffForgeJar(lines);
+			
+			Files.createDirectories(dest.getParent());
+			Path tmp = AtomicFiles.tempSibling(dest);
+			try {
+				Files.write(tmp, lines, StandardCharsets.UTF_8);
+				AtomicFiles.publish(tmp, dest);
+			} finally {
+				Files.deleteIfExists(tmp);
+			}
+		});
+		
+		for(String line : Files.readAllLines(sniffCache, StandardCharsets.UTF_8)) {
+			if(line.isEmpty() || line.startsWith("#")) continue;
+			String[] split = line.split("\t");
+			
+			if(split[0].equals("libdownloader")) {
+				sniffedLibDownloaderJarNames.add(split[1]);
+				if(split.length > 2) sniffedLibDownloaderSha1s.put(split[1], split[2]);
+			} else if(split[0].equals("maven")) {
+				sniffedMavenDepNames.add(split[1]);
+			}
+		}
+		
+		if(bouncycastleCheat) {
+			sniffedLibDownloaderJarNames.add("bcprov-jdk15on-147.jar");
+			log.info("|-> Cheating and pretending bcprov-jdk15on-147.jar is a Forge library...");
+		}
+		
+		log.info("] found {} lib-downloader libraries and {} Maven libraries", sniffedLibDownloaderJarNames.size(), sniffedMavenDepNames.size());
+		
+		return this;
+	}
+	
+	//bump if the sniffer starts finding different things, so old cached results get ignored
+	private static final String SNIFF_FORMAT = "v1";
+	private static final Pattern SHA1_HEX = Pattern.compile("^[0-9a-fA-F]{40}$");
+	
+	private void sniffForgeJar(List<String> lines) throws Exception {
+		List<String> jarNames = new ArrayList<>();
+		List<String> sha1s = new ArrayList<>();
+		
 		class LibrarySniffingClassVisitor extends ClassVisitor {
 			public LibrarySniffingClassVisitor() {
 				super(Opcodes.ASM4, null);
@@ -81,7 +141,9 @@ public class ForgeDependencyFetcher extends NewProvider<ForgeDependencyFetcher>
 						//and seeing which array the string constants end up being written to.
 						if(value instanceof String && ((String) value).endsWith(".jar")) {
 							log.info("|-> Found Forge library: {}", value);
-							sniffedLibDownloaderJarNames.add((String) value);
+							jarNames.add((String) value);
+						} else if(value instanceof String && SHA1_HEX.matcher((String) value).matches()) {
+							sha1s.add((String) value);
 						}
 					}
 				};
@@ -104,6 +166,14 @@ public class ForgeDependencyFetcher extends NewProvider<ForgeDependencyFetcher>
 				log.info("|-> No cpw.mods.fml.relauncher.CoreFMLLibraries class in this Forge jar.");
 			}
 			
+			//The libraries and checksums arrays are written in the same order. If the counts don't line up, I'm not
+			//confident enough about which hash goes with which library, so don't use any of them.
+			boolean pairSha1s = jarNames.size() == sha1s.size();
+			if(!pairSha1s && !sha1s.isEmpty()) log.info("|-> Found {} libraries but {} hashes, not verifying them", jarNames.size(), sha1s.size());
+			for(int i = 0; i < jarNames.size(); i++) {
+				lines.add("libdownloader\t" + jarNames.get(i) + (pairSha1s ? "\t" + sha1s.get(i).toLowerCase(Locale.ROOT) : ""));
+			}
+			
 			Path versionJsonPath = forgeFs.getPath("/version.json");
 			if(Files.exists(versionJsonPath)) {
 				log.info("|-> A version.json exists in this Forge jar, I guess we're in the Launchwrapper era. Parsing it for libraries.");
@@ -112,22 +182,13 @@ public class ForgeDependencyFetcher extends NewProvider<ForgeDependencyFetcher>
 				for(VersionManifest.Library lib : versionManifest.libraries) {
 					//todo: all the natives handling from vanilla's library sniffer too?
 					if(lib.allowed(OperatingSystem.CURRENT) && !lib.isCustomForge()) {
-						sniffedMavenDepNames.add(lib.name);
+						lines.add("maven\t" + lib.name);
 					}
 				}
 			} else {
 				log.info("|-> No version.json exists in this jar.");
 			}
 		}
-		
-		if(bouncycastleCheat) {
-			sniffedLibDownloaderJarNames.add("bcprov-jdk15on-147.jar");
-			log.info("|-> Cheating and pretending bcprov-jdk15on-147.jar is a Forge library...");
-		}
-		
-		log.info("] found {} lib-downloader libraries and {} Maven libraries", sniffedLibDownloaderJarNames.size(), sniffedMavenDepNames.size());
-		
-		return this;
 	}
 	
 	public ForgeDependencyFetcher fetch() throws Exception {
@@ -139,22 +200,37 @@ public class ForgeDependencyFetcher extends NewProvider<ForgeDependencyFetcher>
 		if(!sniffedLibDownloaderJarNames.isEmpty()) {
 			Files.createDirectories(libDownloaderDir);
 			
+			//Libraries that are already here (and have the right hash, if Forge told us one) are used as-is, without
+			//asking the server about them. The rest are all downloaded at once.
+			DownloadQueue queue = newDownloadQueue();
 			for(String lib : sniffedLibDownloaderJarNames) {
 				Path dest = libDownloaderDir.resolve(lib);
 				resolvedLibDownloaderJars.add(dest);
 				
-				newDownloadSession(fmlLibrariesBaseUrl + lib)
+				String sha1 = sniffedLibDownloaderSha1s.get(lib);
+				if(Files.exists(dest) && (sha1 == null || Checksum.compareFileHexHash(dest, sha1, Checksum.SHA1.get()))) {
+					log.info("|-> Forge library {} is present{}", lib, sha1 == null ? "" : " and verified");
+					continue;
+				}
+				
+				queue.add(newDownloadSession(fmlLibrariesBaseUrl + lib)
 					.dest(dest)
-					.etag(true)
 					.gzip(false)
-					.skipIfExists()
-					.download();
+					.expectSha1(sha1));
 			}
+			queue.downloadAll("Forge libraries");
 		}
 		
 		return this;
 	}
 	
+	//for the bundle exporter
+	public Collection<Path> getDownloadedFiles() {
+		Collection<Path> downloadedFiles = new ArrayList<>(resolvedLibDownloaderJars);
+		if(sniffCache != null) downloadedFiles.add(sniffCache);
+		return downloadedFiles;
+	}
+	
 	public ForgeDependencyFetcher installDependenciesToProject(String config, DependencyHandler deps) {
 		for(Path resolvedLibrary : resolvedLibDownloaderJars) {
 			deps.add(config, files(resolvedLibrary));
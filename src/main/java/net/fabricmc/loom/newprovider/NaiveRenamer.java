@@ -4,15 +4,15 @@ import net.fabricmc.loom.LoomGradleExtension;
 import net.fabricmc.loom.mcp.Members;
 import net.fabricmc.loom.mcp.NaiveAsmSrgRenamer;
 import net.fabricmc.loom.mcp.NaiveTextualSrgRenamer;
+import net.fabricmc.loom.util.Props;
 import net.fabricmc.loom.util.ZipUtil;
 import org.gradle.api.Project;
 import org.gradle.api.logging.Logger;
 import org.objectweb.asm.ClassReader;
 import org.objectweb.asm.ClassWriter;
 
-import java.io.BufferedInputStream;
+import javax.annotation.Nullable;
 import java.io.IOException;
-import java.io.InputStream;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.FileSystem;
 import java.nio.file.FileVisitResult;
@@ -20,6 +20,7 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.SimpleFileVisitor;
 import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Set;
 
 public class NaiveRenamer extends NewProvider<NaiveRenamer> {
 	public NaiveRenamer(Project project, LoomGradleExtension extension) {
@@ -52,6 +53,18 @@ public class NaiveRenamer extends NewProvider<NaiveRenamer> {
 		return this;
 	}
 	
+	/**
+	 * If {@code input} is an access-transformed jar that was patched from an earlier run, patch the output of the
+	 * corresponding earlier rename too, instead of renaming every class again.
+	 * Only valid when {@code input} is the access transformer's output, so the jar entry names line up.
+	 */
+	public NaiveRenamer patchAfter(AccessTransformer upstream) {
+		this.upstream = upstream;
+		return this;
+	}
+	
+	private @Nullable AccessTransformer upstream;
+	
 	//output
 	private Path output;
 	
@@ -61,18 +74,38 @@ public class NaiveRenamer extends NewProvider<NaiveRenamer> {
 	
 	public NaiveRenamer rename() throws Exception {
 		//kludge: putting it next to the output of RemapperMcp
-		output = getOrCreate(getCacheDir().resolve("mapped").resolve(outputDirectory).resolve(props.subst(outputFilename)), dest -> {
+		Path outputDir = getCacheDir().resolve("mapped").resolve(outputDirectory);
+		output = getOrCreate(outputDir.resolve(props.subst(outputFilename)), dest -> {
 			Files.createDirectories(dest.getParent());
-			doIt(input, dest, log, fields, methods);
+			
+			Props previousProps = upstream == null || isRefreshDependencies() ? null : upstream.previousProps(props);
+			Path previousOutput = previousProps == null ? null : outputDir.resolve(previousProps.subst(outputFilename));
+			if(previousOutput != null && Files.exists(previousOutput)) {
+				log.lifecycle("|-> Patching {} changed classes into the renamed jar from an earlier run ({})", upstream.getChangedEntries().size(), previousOutput);
+				doIt(input, dest, log, fields, methods, previousOutput, upstream.getChangedEntries());
+			} else {
+				doIt(input, dest, log, fields, methods);
+			}
 		});
 		
 		return this;
 	}
 	
 	public static void doIt(Path input, Path output, Logger log, Members fields, Members methods) throws Exception {
+		doIt(input, output, log, fields, methods, null, null);
+	}
+	
+	/**
+	 * @param previousOutput if not {@code null}, a jar previously produced by this method from an input that only differs in {@code changedEntries};
+	 *                       every other entry is copied from there, instead of being renamed again
+	 */
+	public static void doIt(Path input, Path output, Logger log, Members fields, Members methods, @Nullable Path previousOutput, @Nullable Set<String> changedEntries) throws Exception {
 		log.warn("NaiveRenamer.doIt; input: {}, output: {}", input, output);
 		
-		try(FileSystem srcFs = ZipUtil.openFs(input); FileSystem dstFs = ZipUtil.createFs(output)) {
+		int[] untouchedClasses = new int[] { 0 };
+		try(FileSystem srcFs = ZipUtil.openFs(input);
+		    FileSystem previousFs = previousOutput == null ? null : ZipUtil.openFs(previousOutput);
+		    FileSystem dstFs = ZipUtil.createFs(output)) {
 			Files.walkFileTree(srcFs.getPath("/"), new SimpleFileVisitor<Path>() {
 				@Override
 				public FileVisitResult preVisitDirectory(Path srcDir, BasicFileAttributes attrs) throws IOException {
@@ -85,12 +118,27 @@ public class NaiveRenamer extends NewProvider<NaiveRenamer> {
 					Path dstPath = dstFs.getPath(srcPath.toString());
 					String dstPathString = dstPath.toString();
 					
+					if(previousFs != null && !changedEntries.contains(srcPath.toString())) {
+						Path previousPath = previousFs.getPath(srcPath.toString());
+						if(Files.exists(previousPath)) {
+							Files.copy(previousPath, dstPath);
+							return FileVisitResult.CONTINUE;
+						}
+					}
+					
 					if(dstPathString.endsWith(".class")) {
-						try(InputStream srcReader = new BufferedInputStream(Files.newInputStream(srcPath))) {
-							ClassReader srcClassReader = new ClassReader(srcReader);
-							ClassWriter dstClassWriter = new ClassWriter(0);
+						byte[] srcBytes = Files.readAllBytes(srcPath);
+						ClassReader srcClassReader = new ClassReader(srcBytes);
+						
+						if(NaiveAsmSrgRenamer.wouldRename(srcClassReader, fields, methods)) {
+							//copies the constant pool; the old SRG names are left behind as unused entries, which is harmless
+							ClassWriter dstClassWriter = new ClassWriter(srcClassReader, 0);
 							srcClassReader.accept(new NaiveAsmSrgRenamer(dstClassWriter, fields, methods), 0);
 							Files.write(dstPath, dstClassWriter.toByteArray());
+						} else {
+							//nothing in the constant pool mentions an SRG name, so skip the full ASM parse/write round-trip
+							Files.write(dstPath, srcBytes);
+							untouchedClasses[0]++;
 						}
 					} else if(dstPathString.endsWith(".java")) {
 						String src = new String(Files.readAllBytes(srcPath), StandardCharsets.UTF_8);
@@ -105,6 +153,6 @@ public class NaiveRenamer extends NewProvider<NaiveRenamer> {
 			});
 		}
 		
-		log.info("|-> Done.");
+		log.info("|-> Done. {} classes contained no SRG names and were copied as-is.", untouchedClasses[0]);
 	}
 }
@@ -4,6 +4,8 @@ import net.fabricmc.loom.LoomGradleExtension;
 import net.fabricmc.loom.LoomGradlePlugin;
 import net.fabricmc.loom.ProviderGraph;
 import net.fabricmc.loom.WellKnownLocations;
+import net.fabricmc.loom.util.ClasspathSkeletons;
+import net.fabricmc.loom.util.DownloadQueue;
 import net.fabricmc.loom.util.DownloadSession;
 import net.fabricmc.loom.util.Props;
 import org.gradle.api.Project;
@@ -84,6 +86,11 @@ public abstract class NewProvider<SELF extends NewProvider<SELF>> {
 		return path;
 	}
 	
+	//for providers that try to reuse the output of a previous run; shouldn't do that when the user asked for a clean slate
+	protected final boolean isRefreshDependencies() {
+		return extension.refreshDependencies;
+	}
+	
 	//TODO: reimpl projectmappiness? Shouldn't be too hard, read off the Props
 	public final Path getCacheDir() {
 		return WellKnownLocations.getUserCache(project);
@@ -112,6 +119,10 @@ public abstract class NewProvider<SELF extends NewProvider<SELF>> {
 		}
 	}
 	
+	protected final void delete(Path path) {
+		LoomGradlePlugin.delete(project, path);
+	}
+	
 	//Trying to keep the provider stuff pretty separate from most Gradle wizardry, but I do need to poke a few holes:
 	protected final Configuration getConfigurationByName(String name) {
 		return project.getConfigurations().getByName(name);
@@ -121,8 +132,12 @@ public abstract class NewProvider<SELF extends NewProvider<SELF>> {
 		return new DownloadSession(url, project);
 	}
 	
-	protected final Path getRemappedModCache() {
-		return WellKnownLocations.getRemappedModCache(project);
+	protected final DownloadQueue newDownloadQueue() {
+		return new DownloadQueue(log, extension.downloadThreads);
+	}
+	
+	protected final ClasspathSkeletons newClasspathSkeletons() {
+		return new ClasspathSkeletons(WellKnownLocations.getClasspathSkeletonCache(project), log);
 	}
 	
 	protected final FileCollection files(Object... paths) {
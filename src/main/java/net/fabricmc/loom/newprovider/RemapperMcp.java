@@ -2,6 +2,8 @@ package net.fabricmc.loom.newprovider;
 
 import net.fabricmc.loom.LoomGradleExtension;
 import net.fabricmc.loom.mcp.Srg;
+import net.fabricmc.loom.util.ClasspathSkeletons;
+import net.fabricmc.tinyremapper.InputTag;
 import net.fabricmc.tinyremapper.OutputConsumerPath;
 import net.fabricmc.tinyremapper.TinyRemapper;
 import org.gradle.api.Project;
@@ -15,10 +17,20 @@ import org.objectweb.asm.Opcodes;
 import org.objectweb.asm.TypePath;
 
 import javax.annotation.Nullable;
+import java.io.IOException;
 import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
 
 public class RemapperMcp extends NewProvider<RemapperMcp> {
 	public RemapperMcp(Project project, LoomGradleExtension extension) {
@@ -67,21 +79,17 @@ public class RemapperMcp extends NewProvider<RemapperMcp> {
 	
 	public RemapperMcp remap() throws Exception {
 		mappedJar = getOrCreate(getCacheDir().resolve("mapped").resolve(mappedDirectory).resolve(props.subst(mappedFilename)), dest ->
-			doIt(input, dest, srg, log, deletedPrefixes, remapClasspath));
+			doIt(input, dest, srg, log, deletedPrefixes, newClasspathSkeletons().skeletonize(remapClasspath)));
 		
 		return this;
 	}
 	
+	/**
+	 * @param remapClasspath jars to read for inheritance information. Consider passing them through {@link ClasspathSkeletons} first
+	 */
 	public static void doIt(Path input, Path mappedJar, Srg srg, Logger log, @Nullable Set<String> deletedPrefixes, @Nullable Set<Path> remapClasspath) throws Exception {
 		log.lifecycle("\\-> Constructing TinyRemapper");
-		TinyRemapper remapper = TinyRemapper.newRemapper()
-			.renameInvalidLocals(true)
-			.rebuildSourceFilenames(true)
-			.ignoreFieldDesc(true) //MCP doesn't have them
-			.skipLocalVariableMapping(true)
-			.withMappings(srg.toMappingProvider())
-			.extraPostApplyVisitor((trclass, next) -> new Asm4CompatClassVisitor(next)) //TODO maybe move this lol
-			.build();
+		TinyRemapper remapper = newRemapper(srg);
 		
 		log.lifecycle("] input jar: {}", input);
 		log.lifecycle("] mapped jar: {}", mappedJar);
@@ -102,6 +110,125 @@ public class RemapperMcp extends NewProvider<RemapperMcp> {
 		log.lifecycle("\\-> Remap success! :)");
 	}
 	
+	/**
+	 * Remaps several jars at once, in one TinyRemapper session. Each input is tagged separately, so each one ends up in
+	 * its own output jar, but the classpath is only read once and all the inputs can see each other's classes.
+	 * <p>
+	 * TinyRemapper only keeps one class per name, so two inputs with a class of the same name can't share a session (one
+	 * of the copies would be silently dropped, or end up in the wrong jar). Inputs like that are split off into separate
+	 * sessions, which see the other inputs on the classpath instead.
+	 * 
+	 * @param inputsToOutputs map from input jar to the path its remapped copy should be written to
+	 */
+	public static void doItBatch(Map<Path, Path> inputsToOutputs, Srg srg, Logger log, @Nullable Set<Path> remapClasspath) throws Exception {
+		if(inputsToOutputs.isEmpty()) return;
+		
+		List<Map<Path, Path>> sessions = splitOnDuplicateClasses(inputsToOutputs, log);
+		for(Map<Path, Path> session : sessions) {
+			Set<Path> sessionClasspath = new LinkedHashSet<>();
+			if(remapClasspath != null) sessionClasspath.addAll(remapClasspath);
+			for(Path input : inputsToOutputs.keySet()) {
+				if(!session.containsKey(input)) sessionClasspath.add(input);
+			}
+			
+			doItOneSession(session, srg, log, sessionClasspath);
+		}
+	}
+	
+	private static void doItOneSession(Map<Path, Path> inputsToOutputs, Srg srg, Logger log, Set<Path> remapClasspath) throws Exception {
+		log.lifecycle("\\-> Constructing TinyRemapper for {} jar{}", inputsToOutputs.size(), inputsToOutputs.size() == 1 ? "" : "s");
+		TinyRemapper remapper = newRemapper(srg);
+		
+		try {
+			remapper.readClassPath(remapClasspath.toArray(new Path[0]));
+			
+			Map<Path, InputTag> tags = new LinkedHashMap<>();
+			for(Path input : inputsToOutputs.keySet()) {
+				InputTag tag = remapper.createInputTag();
+				tags.put(input, tag);
+				remapper.readInputs(tag, input);
+			}
+			
+			for(Map.Entry<Path, InputTag> entry : tags.entrySet()) {
+				Path input = entry.getKey();
+				Path mappedJar = inputsToOutputs.get(input);
+				log.lifecycle("\\-> Remapping {} to {}", input, mappedJar);
+				
+				try(OutputConsumerPath oc = new OutputConsumerPath.Builder(mappedJar).build()) {
+					oc.addNonClassFiles(input);
+					remapper.apply(oc, entry.getValue());
+				}
+			}
+		} finally {
+			remapper.finish();
+		}
+		
+		log.lifecycle("\\-> Remap success! :)");
+	}
+	
+	/**
+	 * Greedily packs the inputs into as few groups as possible, such that no two jars in the same group contain a class
+	 * with the same name. Usually that's just one group.
+	 */
+	private static List<Map<Path, Path>> splitOnDuplicateClasses(Map<Path, Path> inputsToOutputs, Logger log) throws IOException {
+		List<Map<Path, Path>> groups = new ArrayList<>();
+		List<Map<String, Path>> groupClasses = new ArrayList<>(); //class name -> the jar in that group it came from
+		
+		for(Map.Entry<Path, Path> entry : inputsToOutputs.entrySet()) {
+			Path input = entry.getKey();
+			Set<String> classes = classNames(input);
+			
+			int i = 0;
+			for(; i < groups.size(); i++) {
+				Map<String, Path> taken = groupClasses.get(i);
+				String clash = null;
+				for(String cls : classes) {
+					if(taken.containsKey(cls)) {
+						clash = cls;
+						break;
+					}
+				}
+				
+				if(clash == null) break;
+				log.warn("!! {} and {} both contain {}, so they can't be remapped in the same tiny-remapper session", input, taken.get(clash), clash);
+			}
+			
+			if(i == groups.size()) {
+				groups.add(new LinkedHashMap<>());
+				groupClasses.add(new HashMap<>());
+			}
+			groups.get(i).put(input, entry.getValue());
+			for(String cls : classes) groupClasses.get(i).put(cls, input);
+		}
+		
+		if(groups.size() > 1) log.warn("!! Remapping mod dependencies in {} tiny-remapper sessions instead of one, because of duplicate classes", groups.size());
+		return groups;
+	}
+	
+	private static Set<String> classNames(Path jar) throws IOException {
+		Set<String> classes = new HashSet<>();
+		try(ZipFile zip = new ZipFile(jar.toFile())) {
+			Enumeration<? extends ZipEntry> entries = zip.entries();
+			while(entries.hasMoreElements()) {
+				String name = entries.nextElement().getName();
+				//(tiny-remapper doesn't read classes under META-INF either)
+				if(name.endsWith(".class") && !name.startsWith("META-INF/")) classes.add(name);
+			}
+		}
+		return classes;
+	}
+	
+	private static TinyRemapper newRemapper(Srg srg) {
+		return TinyRemapper.newRemapper()
+			.renameInvalidLocals(true)
+			.rebuildSourceFilenames(true)
+			.ignoreFieldDesc(true) //MCP doesn't have them
+			.skipLocalVariableMapping(true)
+			.withMappings(srg.toMappingProvider())
+			.extraPostApplyVisitor((trclass, next) -> new Asm4CompatClassVisitor(next)) //TODO maybe move this lol
+			.build();
+	}
+	
 	/**
 	 * Basically tiny-remapper is putting things into the class file that aren't compatible with ASM api level 4, which
 	 * many versions of Forge use to parse mod classes. Ex., for some reason after remapping, a parameter-name table
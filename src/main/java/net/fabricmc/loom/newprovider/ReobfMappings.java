@@ -0,0 +1,111 @@
+package net.fabricmc.loom.newprovider;
+
+import net.fabricmc.loom.LoomGradleExtension;
+import net.fabricmc.loom.mcp.Members;
+import net.fabricmc.loom.mcp.Srg;
+import net.fabricmc.loom.util.AtomicFiles;
+import net.fabricmc.loom.util.Check;
+import net.fabricmc.loom.util.StringInterner;
+import org.gradle.api.Project;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Mappings from the named workspace back to the distribution naming scheme, used when remapping the mod under development
+ * for release.
+ * <p>
+ * Unlike most providers, this one doesn't do anything during setup. Only a release build needs reobf mappings, and they're
+ * a whole extra copy of the SRG, so they're built the first time {@code getReobfSrg} is called, and written to the
+ * user cache so the next release build only has to read them back in.
+ */
+public class ReobfMappings extends NewProvider<ReobfMappings> {
+	public ReobfMappings(Project project, LoomGradleExtension extension) {
+		super(project, extension);
+	}
+	
+	//inputs
+	private Srg srg;
+	private Members fields, methods;
+	private boolean reobfToSrg;
+	private String mappingsDirectory, reobfFilename;
+	
+	public ReobfMappings srg(Srg srg) {
+		this.srg = srg;
+		return this;
+	}
+	
+	public ReobfMappings fields(Members fields) {
+		this.fields = fields;
+		return this;
+	}
+	
+	public ReobfMappings methods(Members methods) {
+		this.methods = methods;
+		return this;
+	}
+	
+	public ReobfMappings reobfToSrg(boolean reobfToSrg) {
+		this.reobfToSrg = reobfToSrg;
+		props.put("reobfToSrg", Boolean.toString(reobfToSrg));
+		return this;
+	}
+	
+	public ReobfMappings reobfFilename(String mappingsDirectory, String reobfFilename) {
+		this.mappingsDirectory = mappingsDirectory;
+		this.reobfFilename = reobfFilename;
+		return this;
+	}
+	
+	//outputs
+	private Path reobfSrgFile;
+	private Srg reobfSrg;
+	
+	public synchronized Path getReobfSrgFile() throws Exception {
+		if(reobfSrgFile == null) {
+			Check.notNull(srg, "srg");
+			Check.notNull(fields, "fields");
+			Check.notNull(methods, "methods");
+			
+			reobfSrgFile = getOrCreate(getReobfSrgPath(), dest -> {
+				Files.createDirectories(dest.getParent());
+				
+				log.lifecycle("|-> Building reobf mappings ({} -> {})...", "named", reobfToSrg ? "srg" : "proguard");
+				reobfSrg = srg.reobf(fields, methods, reobfToSrg);
+				
+				//other builds read this straight out of the cache, so don't let them see half of it
+				Path tmp = AtomicFiles.tempSibling(dest);
+				try {
+					reobfSrg.writeTo(tmp);
+					AtomicFiles.publish(tmp, dest);
+				} finally {
+					Files.deleteIfExists(tmp);
+				}
+			});
+		}
+		
+		return reobfSrgFile;
+	}
+	
+	/**
+	 * Where {@code getReobfSrgFile} puts the mappings, without building them. The filename has a hash of everything they're
+	 * built from, so this is also a cheap way to tell two sets of reobf mappings apart.
+	 */
+	public Path getReobfSrgPath() {
+		//kludge: putting it next to the output of RemapperMcp
+		return getCacheDir().resolve("mapped").resolve(mappingsDirectory).resolve(props.subst(reobfFilename));
+	}
+	
+	public synchronized Srg getReobfSrg() throws Exception {
+		Path file = getReobfSrgFile();
+		
+		if(reobfSrg == null) {
+			log.info("|-> Reading reobf mappings from {}", file);
+			try(StringInterner mem = new StringInterner()) {
+				reobfSrg = new Srg().read(file, mem);
+			}
+		}
+		
+		return reobfSrg;
+	}
+}
@@ -1,21 +1,24 @@
 package net.fabricmc.loom.newprovider;
 
 import net.fabricmc.loom.LoomGradleExtension;
+import net.fabricmc.loom.util.AtomicFiles;
 import net.fabricmc.loom.util.Check;
+import net.fabricmc.loom.util.Checksum;
+import net.fabricmc.loom.util.DownloadQueue;
 import net.fabricmc.loom.util.OperatingSystem;
 import net.fabricmc.loom.util.VersionManifest;
 import net.fabricmc.loom.util.ZipUtil;
 import org.gradle.api.Project;
 import org.gradle.api.artifacts.dsl.DependencyHandler;
 
-import java.nio.file.FileVisitResult;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.SimpleFileVisitor;
-import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.List;
 
 public class VanillaDependencyFetcher extends NewProvider<VanillaDependencyFetcher> {
 	public VanillaDependencyFetcher(Project project, LoomGradleExtension extension) {
@@ -25,7 +28,9 @@ public class VanillaDependencyFetcher extends NewProvider<VanillaDependencyFetch
 	//inputs
 	private VersionManifest manifest;
 	private String librariesBaseUrl;
-	private String nativesDirName;
+	
+	//bump to re-extract everyone's natives (v2 cachebusted some version manifest changes in 2.5; v3 keyed them by jar hash)
+	private static final String NATIVES_FORMAT = "v3";
 	
 	public VanillaDependencyFetcher manifest(VersionManifest manifest) {
 		this.manifest = manifest;
@@ -39,11 +44,6 @@ public class VanillaDependencyFetcher extends NewProvider<VanillaDependencyFetch
 		return this;
 	}
 	
-	public VanillaDependencyFetcher nativesDirname(String nativesDirname) {
-		this.nativesDirName = nativesDirname;
-		return this;
-	}
-	
 	//outputs
 	private Path nativesDir;
 	private final Collection<String> mavenDependencies = new ArrayList<>();
@@ -68,54 +68,54 @@ public class VanillaDependencyFetcher extends NewProvider<VanillaDependencyFetch
 	
 	//process
 	public VanillaDependencyFetcher fetch() throws Exception {
-		Check.notNull(nativesDirName, "natives directory name");
 		Check.notNull(manifest, "minecraft version manifest");
 		Check.notNull(librariesBaseUrl, "libraries base URL");
 		
-		nativesDir = getOrCreate(getCacheDir().resolve("natives").resolve(props.subst(nativesDirName)), dest -> {
-//			Path prismOverlayManifestPath = getOrCreate(getCacheDir().resolve("natives").resolve("prism-launcher-lwjgl.json"), dest2 -> {
-//				log.info("|-> Downloading prism launcher lwjgl 2.9.4 information...");
-//				newDownloadSession("https://meta.prismlauncher.org/v1/org.lwjgl/2.9.4-nightly-20150209.json")
-//					.dest(dest2)
-//					.gzip(true)
-//					.download();
-//			});
-//			VersionManifest prismOverlayManifest = VersionManifest.read(prismOverlayManifestPath);
-			
-			log.info("|-> Downloading native libraries into {}", dest);
-			Files.createDirectories(dest);
+		//Natives are keyed by the hashes of the native jars themselves, not the Minecraft version, so every version that
+		//uses the same LWJGL natives (most of them) shares one extracted directory.
+		List<VersionManifest.LibraryArtifact> nativeArtifacts = new ArrayList<>();
+		MessageDigest nativesKey = Checksum.SHA1.get();
+		for(VersionManifest.Library library : manifest.libraries) {
+			if(!library.allowed(OperatingSystem.CURRENT) || !library.hasNatives()) continue;
 			
-			for(VersionManifest.Library library : manifest.libraries) {
-				if(!library.allowed(OperatingSystem.CURRENT) || !library.hasNatives()) continue;
-				
-				VersionManifest.LibraryArtifact nativeArtifact = library.nativeArtifactFor(OperatingSystem.CURRENT);
-				
-//				//If the prism launcher manifest has an artifact, grab it instead
-//				VersionManifest.Library prismLibraryInstead = prismOverlayManifest.librariesByArtifactName.get(library.getMavenArtifactName());
-//				if(prismLibraryInstead != null) {
-//					VersionManifest.LibraryArtifact prismNativeArtifactInstead = prismLibraryInstead.nativeArtifactFor(OperatingSystem.CURRENT);
-//					if(prismNativeArtifactInstead != null) {
-//						log.lifecycle("!! Swapping Mojang's '" + library.name + "' for '" + prismLibraryInstead.name + "' provided by Prism Launcher");
-//						nativeArtifact = prismNativeArtifactInstead;
-//					}
-//				}
-				
-				//download the natives jar
-				Path libJar = newDownloadSession(nativeArtifact.url)
-					.dest(nativeArtifact.resolveFlat(dest.resolve("jars")))
-					.etag(false) //no need to save etag, this directory is fresh.
+			VersionManifest.LibraryArtifact nativeArtifact = library.nativeArtifactFor(OperatingSystem.CURRENT);
+			nativeArtifacts.add(nativeArtifact);
+			nativesKey.update((nativeArtifact.sha1 != null ? nativeArtifact.sha1 : nativeArtifact.url).getBytes(StandardCharsets.UTF_8));
+			nativesKey.update((byte) '\n');
+		}
+		
+		Path nativesStore = getCacheDir().resolve("natives");
+		nativesDir = getOrCreate(nativesStore.resolve(Checksum.toHexStringPrefix(nativesKey.digest(), 12) + "-" + NATIVES_FORMAT), dest -> {
+			//download the natives jars, all at once
+			//they go in a shared directory, since the same natives jar is often used by several versions
+			Path jarsDir = nativesStore.resolve("jars");
+			DownloadQueue queue = newDownloadQueue();
+			List<Path> libJars = new ArrayList<>();
+			for(VersionManifest.LibraryArtifact nativeArtifact : nativeArtifacts) {
+				Path libJar = nativeArtifact.resolveFlat(jarsDir);
+				libJars.add(libJar);
+				queue.add(newDownloadSession(nativeArtifact.url)
+					.dest(libJar)
+					.etag(false)
 					.gzip(true)
-					.download();
-				
-				//extract them all onto each other in nativesDir. the file visitor here is a "filter" argument.
-				//TODO: actually parse the mojang version manifest exclusions instead of hardcoding a meta-inf exclusion?
-				ZipUtil.unpack(libJar, dest, new SimpleFileVisitor<Path>() {
-					@Override
-					public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
-						if(dir.endsWith("META-INF")) return FileVisitResult.SKIP_SUBTREE;
-						else return FileVisitResult.CONTINUE;
-					}
-				});
+					.expectSha1(nativeArtifact.sha1)
+					.skipIfSha1Equals(nativeArtifact.sha1));
+			}
+			queue.downloadAll("native libraries");
+			
+			//extract them all onto each other, somewhere else first so a half-extracted directory never shows up as finished
+			//TODO: actually parse the mojang version manifest exclusions instead of hardcoding a meta-inf exclusion?
+			log.info("|-> Extracting native libraries into {}", dest);
+			Path tmp = AtomicFiles.tempSibling(dest);
+			try {
+				Files.createDirectories(tmp);
+				for(Path libJar : libJars) {
+					ZipUtil.unpackStreaming(libJar, tmp, name -> !name.startsWith("META-INF/"));
+				}
+				//(if another build extracted the same natives at the same time, theirs is just as good)
+				if(!AtomicFiles.publishDirectory(tmp, dest)) log.info("|-> {} was extracted by someone else in the meantime", dest);
+			} finally {
+				if(Files.exists(tmp)) delete(tmp);
 			}
 		});
 		log.lifecycle("] native libraries directory: {}", nativesDir);
@@ -10,6 +10,9 @@ import org.jetbrains.annotations.Nullable;
 
 import java.nio.file.Path;
 import java.time.Period;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Locale;
 
 public class VanillaJarFetcher extends NewProvider<VanillaJarFetcher> {
@@ -48,6 +51,7 @@ public class VanillaJarFetcher extends NewProvider<VanillaJarFetcher> {
 	private Path clientJar;
 	private Path serverJar;
 	private VersionManifest versionManifest;
+	private final List<Path> downloadedFiles = new ArrayList<>();
 	
 	public Path getClientJar() {
 		return clientJar;
@@ -61,6 +65,11 @@ public class VanillaJarFetcher extends NewProvider<VanillaJarFetcher> {
 		return versionManifest;
 	}
 	
+	//for the bundle exporter
+	public List<Path> getDownloadedFiles() {
+		return downloadedFiles;
+	}
+	
 	//process
 	public VanillaJarFetcher fetch() throws Exception {
 		Check.notNull(mc, "minecraft version");
@@ -113,6 +122,7 @@ public class VanillaJarFetcher extends NewProvider<VanillaJarFetcher> {
 				.dest(dest)
 				.etag(true)
 				.gzip(false)
+				.expectSha1(versionManifest.downloads.get("client").sha1)
 				.download();
 		});
 		log.lifecycle("] client jar: {}", clientJar);
@@ -123,10 +133,13 @@ public class VanillaJarFetcher extends NewProvider<VanillaJarFetcher> {
 				.dest(dest)
 				.etag(true)
 				.gzip(false)
+				.expectSha1(versionManifest.downloads.get("server").sha1)
 				.download();
 		});
 		log.lifecycle("] server jar: {}", serverJar);
 		
+		Collections.addAll(downloadedFiles, versionManifestIndexJson, thisVersionManifestJson, clientJar, serverJar);
+		
 		return this;
 	}
 }
@@ -0,0 +1,196 @@
+package net.fabricmc.loom.task;
+
+import net.fabricmc.loom.Constants;
+import net.fabricmc.loom.ProviderGraph;
+import net.fabricmc.loom.WellKnownLocations;
+import net.fabricmc.loom.util.Checksum;
+import net.fabricmc.loom.util.LoomTaskExt;
+import org.gradle.api.DefaultTask;
+import org.gradle.api.artifacts.Configuration;
+import org.gradle.api.artifacts.component.ComponentIdentifier;
+import org.gradle.api.artifacts.component.ModuleComponentIdentifier;
+import org.gradle.api.artifacts.query.ArtifactResolutionQuery;
+import org.gradle.api.artifacts.result.ArtifactResult;
+import org.gradle.api.artifacts.result.ComponentArtifactsResult;
+import org.gradle.api.artifacts.result.ResolvedArtifactResult;
+import org.gradle.api.tasks.OutputFile;
+import org.gradle.api.tasks.TaskAction;
+import org.gradle.maven.MavenModule;
+import org.gradle.maven.MavenPomArtifact;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Writes everything Voldeloom downloads for this project's Minecraft/Forge/mappings setup into one zip, so a fresh
+ * Gradle home (like a CI image) can be seeded with {@code voldeloomImportBundle} and work in offline mode right away.
+ * <p>
+ * The zip contains:
+ * <ul>
+ *   <li>{@code cache/}: files from Voldeloom's user cache (version manifests, Minecraft jars, natives, Forge libraries, assets)</li>
+ *   <li>{@code repo/}: a Maven repository of every module resolved through Minecraft/Forge/mappings/mod configurations, with poms</li>
+ *   <li>{@link #INDEX_NAME}: the first entry, listing every other entry with its size and SHA-1, so the import can check them</li>
+ * </ul>
+ * Gradle's own dependency cache can't be safely seeded by copying files into it, which is why there's a Maven repository
+ * instead; LoomGradlePlugin always adds the unpacked copy of it as a repository.
+ */
+public class ExportBundleTask extends DefaultTask implements LoomTaskExt {
+	public static final String INDEX_NAME = "voldeloom-bundle-index.txt";
+	public static final String INDEX_HEADER = "# voldeloom bundle v1";
+	
+	public ExportBundleTask() {
+		setGroup(Constants.TASK_GROUP_TOOLS);
+		setDescription("Writes everything Voldeloom downloads for this project's Minecraft, Forge and mappings into one zip, for voldeloomImportBundle.");
+		getOutputs().upToDateWhen(__ -> false);
+		
+		bundleFile = new File(getProject().getBuildDir(), "voldeloom-bundle.zip");
+	}
+	
+	private File bundleFile;
+	
+	@OutputFile
+	public File getBundleFile() {
+		return bundleFile;
+	}
+	
+	public void setBundleFile(Object bundleFile) {
+		this.bundleFile = getProject().file(bundleFile);
+	}
+	
+	@TaskAction
+	public void export() throws Exception {
+		ProviderGraph graph = getLoomGradleExtension().getProviderGraph();
+		Path userCache = WellKnownLocations.getUserCache(getProject());
+		
+		//zip entry name -> file. sorted, so the same setup makes the same zip
+		Map<String, Path> entries = new TreeMap<>();
+		
+		getLogger().lifecycle("|-> Collecting downloaded files...");
+		List<Path> downloaded = new ArrayList<>(graph.downloadedFiles);
+		if(graph.assets != null) {
+			downloaded.add(graph.assets.getAssetIndex());
+			graph.assets.downloadAssets();
+			downloaded.addAll(graph.assets.getAssetObjects().values());
+		}
+		for(Path path : downloaded) addCacheFile(entries, userCache, path);
+		
+		getLogger().lifecycle("|-> Collecting Maven dependencies...");
+		Set<String> modules = new HashSet<>();
+		for(String configName : new String[] { Constants.MINECRAFT_DEPENDENCIES, Constants.FORGE_DEPENDENCIES, Constants.FORGE, Constants.FORGE_CLIENT, Constants.FORGE_SERVER, Constants.MAPPINGS, Constants.EVERY_UNMAPPED_MOD }) {
+			Configuration config = getProject().getConfigurations().findByName(configName);
+			if(config == null || !config.isCanBeResolved()) continue;
+			
+			for(ResolvedArtifactResult artifact : config.getIncoming().getArtifacts()) {
+				ComponentIdentifier id = artifact.getId().getComponentIdentifier();
+				if(id instanceof ModuleComponentIdentifier) {
+					ModuleComponentIdentifier module = (ModuleComponentIdentifier) id;
+					modules.add(module.getGroup() + ":" + module.getModule() + ":" + module.getVersion());
+					entries.put("repo/" + mavenDir(module) + "/" + artifact.getFile().getName(), artifact.getFile().toPath());
+				} else {
+					//file dependencies, like layered mappings, are usually in the user cache
+					addCacheFile(entries, userCache, artifact.getFile().toPath());
+				}
+			}
+		}
+		addPoms(entries, modules);
+		
+		getLogger().lifecycle("|-> Hashing {} files...", entries.size());
+		List<String> index = new ArrayList<>();
+		index.add(INDEX_HEADER);
+		for(Map.Entry<String, Path> entry : entries.entrySet()) {
+			index.add(entry.getKey() + "\t" + Files.size(entry.getValue()) + "\t" + Checksum.fileHexHash(entry.getValue(), Checksum.SHA1.get()));
+		}
+		
+		Path bundle = bundleFile.toPath();
+		getLogger().lifecycle("|-> Writing {}...", bundle);
+		Files.createDirectories(bundle.getParent());
+		try(ZipOutputStream zip = new ZipOutputStream(Files.newOutputStream(bundle))) {
+			zip.putNextEntry(new ZipEntry(INDEX_NAME));
+			zip.write(String.join("\n", index).getBytes(StandardCharsets.UTF_8));
+			zip.closeEntry();
+			
+			for(Map.Entry<String, Path> entry : entries.entrySet()) {
+				zip.putNextEntry(new ZipEntry(entry.getKey()));
+				Files.copy(entry.getValue(), zip);
+				zip.closeEntry();
+			}
+		}
+		
+		getLogger().lifecycle("] wrote {} files to {} ({} bytes)", entries.size(), bundle, Files.size(bundle));
+	}
+	
+	private void addCacheFile(Map<String, Path> entries, Path userCache, Path path) throws IOException {
+		if(!path.toAbsolutePath().normalize().startsWith(userCache.toAbsolutePath().normalize())) {
+			getLogger().warn("!! Not including {} in the bundle, it's not in Voldeloom's user cache or a Maven repository", path);
+			return;
+		}
+		
+		if(Files.isDirectory(path)) {
+			try(Stream<Path> walk = Files.walk(path)) {
+				for(Path file : walk.filter(Files::isRegularFile).collect(Collectors.toList())) {
+					addCacheFile(entries, userCache, file);
+				}
+			}
+		} else if(Files.exists(path)) {
+			String relative = userCache.toAbsolutePath().normalize().relativize(path.toAbsolutePath().normalize()).toString().replace('\\', '/');
+			entries.put("cache/" + relative, path);
+		}
+	}
+	
+	private static final Pattern PARENT_POM = Pattern.compile("<parent>.*?<groupId>\\s*([^<\\s]+)\\s*</groupId>.*?<artifactId>\\s*([^<\\s]+)\\s*</artifactId>.*?<version>\\s*([^<\\s]+)\\s*</version>.*?</parent>", Pattern.DOTALL);
+	
+	//Gradle needs the poms to know about transitive dependencies, and the poms need their parent poms
+	@SuppressWarnings("unchecked") //withArtifacts varargs
+	private void addPoms(Map<String, Path> entries, Set<String> modules) throws IOException {
+		Set<String> seen = new HashSet<>();
+		Set<String> next = modules;
+		
+		while(!next.isEmpty()) {
+			Set<String> parents = new HashSet<>();
+			
+			ArtifactResolutionQuery query = getProject().getDependencies().createArtifactResolutionQuery();
+			for(String gav : next) {
+				if(!seen.add(gav)) continue;
+				String[] split = gav.split(":");
+				query.forModule(split[0], split[1], split[2]);
+			}
+			
+			for(ComponentArtifactsResult component : query.withArtifacts(MavenModule.class, MavenPomArtifact.class).execute().getResolvedComponents()) {
+				if(!(component.getId() instanceof ModuleComponentIdentifier)) continue;
+				ModuleComponentIdentifier module = (ModuleComponentIdentifier) component.getId();
+				
+				for(ArtifactResult pom : component.getArtifacts(MavenPomArtifact.class)) {
+					if(!(pom instanceof ResolvedArtifactResult)) continue; //Forge doesn't publish poms for old versions; that's fine
+					Path pomFile = ((ResolvedArtifactResult) pom).getFile().toPath();
+					entries.put("repo/" + mavenDir(module) + "/" + module.getModule() + "-" + module.getVersion() + ".pom", pomFile);
+					
+					Matcher parent = PARENT_POM.matcher(new String(Files.readAllBytes(pomFile), StandardCharsets.UTF_8));
+					if(parent.find()) {
+						parents.add(parent.group(1) + ":" + parent.group(2) + ":" + parent.group(3));
+					}
+				}
+			}
+			
+			next = parents;
+		}
+	}
+	
+	private static String mavenDir(ModuleComponentIdentifier module) {
+		return module.getGroup().replace('.', '/') + "/" + module.getModule() + "/" + module.getVersion();
+	}
+}
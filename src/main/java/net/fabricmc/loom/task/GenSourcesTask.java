@@ -2,35 +2,68 @@ package net.fabricmc.loom.task;
 
 import net.fabricmc.loom.Constants;
 import net.fabricmc.loom.LoomGradlePlugin;
+import net.fabricmc.loom.WellKnownLocations;
 import net.fabricmc.loom.task.fernflower.ForkedFFExecutor;
+import net.fabricmc.loom.task.fernflower.McpJavadocProvider;
+import net.fabricmc.loom.task.fernflower.SourcesCache;
 import net.fabricmc.loom.util.GradleSupport;
 import net.fabricmc.loom.util.LineNumberRemapper;
 import net.fabricmc.loom.util.LoomTaskExt;
 import net.fabricmc.loom.util.ZipUtil;
 import org.gradle.api.DefaultTask;
+import org.gradle.api.GradleException;
+import org.gradle.api.file.FileCollection;
 import org.gradle.api.logging.LogLevel;
 import org.gradle.api.tasks.Input;
+import org.gradle.api.tasks.Optional;
 import org.gradle.api.tasks.TaskAction;
 import org.gradle.process.ExecResult;
 import org.jetbrains.java.decompiler.main.extern.IFernflowerPreferences;
 
+import javax.annotation.Nullable;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
 import java.nio.file.FileSystem;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.security.CodeSource;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 public class GenSourcesTask extends DefaultTask implements LoomTaskExt {
 	public GenSourcesTask() {
 		setGroup(Constants.TASK_GROUP_TOOLS);
 		setDescription("Decompile Minecraft and Forge using the Fernflower decompiler. The resulting file may be attached to your IDE to provide a better Minecraft-browsing experience.");
 		getOutputs().upToDateWhen(__ -> false);
+		
+		Object shardsProp = getProject().findProperty("voldeloom.fernflowerShards");
+		if(shardsProp != null) {
+			try {
+				shards = Integer.parseInt(shardsProp.toString().trim());
+			} catch (NumberFormatException e) {
+				shards = 0;
+			}
+			if(shards < 1) throw new GradleException("voldeloom.fernflowerShards should be a whole number, 1 or more, but it's '" + shardsProp + "'");
+		}
 	}
 	
 	private int numThreads = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
 	private boolean saferBytecodeProvider = getProject().hasProperty("voldeloom.saferFernflower");
+	//like "3G". null = the JVM's default, unless the jars look too big for it
+	private @Nullable String maxHeap = null;
+	//how many Fernflower processes to split the classes between. more of them use less memory each
+	private int shards = 1;
 	
 	//debugging/development options
 	private boolean skipDecompile = getProject().hasProperty("voldeloom.skip-decompile");
@@ -48,8 +81,8 @@ public class GenSourcesTask extends DefaultTask implements LoomTaskExt {
 	@TaskAction
 	public void doIt() throws Exception {
 		List<SourceGenerationJob> jobs = getLoomGradleExtension().getProviderGraph().sourceGenerationJobs;
+		if(!skipDecompile) fernflower(jobs);
 		for(SourceGenerationJob job : jobs) {
-			if(!skipDecompile) fernflower(job.mappedJar, job.sourcesJar, job.mcpMappingsZip, job.linemapFile, job.libraries);
 			linemap(job.mappedJar, job.linemappedJar, job.linemapFile, /* linemapDebug only */ job.sourcesJar);
 		}
 		
@@ -59,48 +92,286 @@ public class GenSourcesTask extends DefaultTask implements LoomTaskExt {
 		for(SourceGenerationJob job : jobs) getLogger().lifecycle(" - {}", job.sourcesJar);
 	}
 	
-	private void fernflower(Path mappedJar, Path sourcesJar, Path mcpMappingsZip, Path linemapFile, Collection<Path> libraries) throws IOException {
+	//bump if the way sources are cached changes
+	private static final String SOURCES_CACHE_FORMAT = "v1";
+	
+	//Every job (two of them, for split client/server setups) is decompiled by the same forked JVM, one after another, so
+	//only the first one pays for JVM startup and JIT warmup. Fernflower already uses all the threads it's given for each.
+	//With more than one shard, each job's classes are split between that many JVMs running at once instead.
+	private void fernflower(List<SourceGenerationJob> jobs) throws IOException {
 		getLogger().lifecycle("|-> Configuring Fernflower...");
 		
-		Files.deleteIfExists(sourcesJar);
-		Files.deleteIfExists(linemapFile);
-		if(sourcesJar.getParent() != null) Files.createDirectories(sourcesJar.getParent());
-		if(linemapFile.getParent() != null) Files.createDirectories(linemapFile.getParent());
-		getLogger().lifecycle("] sources jar target: {}", sourcesJar);
-		getLogger().lifecycle("] linemap file target: {}", linemapFile);
+		//fernflower options
+		List<String> fernflowerOptions = new ArrayList<>();
+		fernflowerOptions.add("-" + IFernflowerPreferences.DECOMPILE_GENERIC_SIGNATURES + "=1");
+		fernflowerOptions.add("-" + IFernflowerPreferences.BYTECODE_SOURCE_MAPPING + "=1");
+		fernflowerOptions.add("-" + IFernflowerPreferences.REMOVE_SYNTHETIC + "=1");
+		fernflowerOptions.add("-" + IFernflowerPreferences.LOG_LEVEL + "=warn");
 		
-		List<String> args = new ArrayList<>();
+		//Sources are cached per class, so only classes that changed since last time (say, because of a mappings change) are decompiled
+		getLogger().lifecycle("|-> Checking the decompiled sources cache...");
+		Path cacheDir = WellKnownLocations.getDecompiledSourcesCache(getProject());
+		if(getLoomGradleExtension().refreshDependencies) {
+			getLogger().lifecycle("!! Deleting the decompiled sources cache because of refreshDependencies mode");
+			LoomGradlePlugin.delete(getProject(), cacheDir);
+			Files.createDirectories(cacheDir);
+		}
+		String optionsKey = String.join("\n", fernflowerOptions) + "\n" + fernflowerVersion() + "\n" + SOURCES_CACHE_FORMAT;
 		
-		//fernflower options
-		args.add("-" + IFernflowerPreferences.DECOMPILE_GENERIC_SIGNATURES + "=1");
-		args.add("-" + IFernflowerPreferences.BYTECODE_SOURCE_MAPPING + "=1");
-		args.add("-" + IFernflowerPreferences.REMOVE_SYNTHETIC + "=1");
-		args.add("-" + IFernflowerPreferences.LOG_LEVEL + "=warn");
-		args.add("-" + IFernflowerPreferences.THREADS + "=" + getNumThreads());
-		
-		//ForkedFFExecutor wrapper options
-		args.add("-input=" + mappedJar.toAbsolutePath());
-		args.add("-output=" + sourcesJar.toAbsolutePath());
-		libraries.forEach(f -> args.add("-library=" + f.toAbsolutePath()));
-		if(mcpMappingsZip != null) args.add("-mcpmappings=" + mcpMappingsZip.toAbsolutePath());
-		args.add("-linemap=" + linemapFile.toAbsolutePath());
-		if(saferBytecodeProvider) args.add("-safer-bytecode-provider");
-		
-		getLogger().lifecycle("|-> Starting ForkedFFExector...");
-		getLogging().captureStandardOutput(LogLevel.LIFECYCLE);
-		ExecResult result = forkedJavaexec(spec -> {
-			GradleSupport.setMainClass(spec, ForkedFFExecutor.class.getName());
-			//spec.jvmArgs("-Xms200m", "-Xmx3G"); //the defaults work on my machine :tm: and this version of minecraft is so small and cute
-			spec.setArgs(args);
-			spec.setErrorOutput(System.err);
-			spec.setStandardOutput(System.out);
-		});
-		getLogger().lifecycle("|-> Exec finished?");
-		result.rethrowFailure();
-		result.assertNormalExitValue();
+		int shardCount = Math.max(1, shards);
+		List<Shard> shardList = new ArrayList<>();
+		for(int k = 0; k < shardCount; k++) shardList.add(new Shard(k));
+		
+		List<SourcesCache> caches = new ArrayList<>();
+		List<Runnable> stores = new ArrayList<>();
+		
+		for(int i = 0; i < jobs.size(); i++) {
+			SourceGenerationJob job = jobs.get(i);
+			
+			Files.deleteIfExists(job.sourcesJar);
+			Files.deleteIfExists(job.linemapFile);
+			if(job.sourcesJar.getParent() != null) Files.createDirectories(job.sourcesJar.getParent());
+			if(job.linemapFile.getParent() != null) Files.createDirectories(job.linemapFile.getParent());
+			getLogger().lifecycle("] sources jar target: {}", job.sourcesJar);
+			getLogger().lifecycle("] linemap file target: {}", job.linemapFile);
+			
+			SourcesCache cache = new SourcesCache(cacheDir, optionsKey, job.mcpMappingsZip == null ? null : new McpJavadocProvider(job.mcpMappingsZip)).scan(job.mappedJar);
+			caches.add(cache);
+			Set<String> misses = cache.getMisses();
+			getLogger().lifecycle("] {} of {} classes need decompiling", misses.size(), cache.getClassNames().size());
+			if(misses.isEmpty()) continue;
+			
+			long libraryBytes = 0;
+			for(Path f : job.libraries) if(Files.isRegularFile(f)) libraryBytes += Files.size(f);
+			
+			List<Set<String>> split = splitIntoShards(misses, shardCount);
+			for(int k = 0; k < split.size(); k++) {
+				Set<String> changed = split.get(k);
+				Set<String> rest = new TreeSet<>(cache.getClassNames());
+				rest.removeAll(changed);
+				
+				Path tmp = getTemporaryDir().toPath().resolve("job" + i + "-shard" + k);
+				Files.createDirectories(tmp);
+				Path changedJar = tmp.resolve("changed.jar");
+				Path restJar = tmp.resolve("rest.jar");
+				Path changedSourcesJar = tmp.resolve("changed-sources.jar");
+				Path changedLinemapFile = tmp.resolve("changed-linemap.txt");
+				Files.deleteIfExists(changedSourcesJar);
+				Files.deleteIfExists(changedLinemapFile);
+				
+				cache.writeJar(job.mappedJar, changedJar, changed);
+				if(!rest.isEmpty()) cache.writeJar(job.mappedJar, restJar, rest); //fernflower still wants to see them
+				
+				//ForkedFFExecutor wrapper options
+				Shard shard = shardList.get(k);
+				shard.args.add("-job");
+				shard.args.add("-input=" + changedJar.toAbsolutePath());
+				shard.args.add("-output=" + changedSourcesJar.toAbsolutePath());
+				for(Path f : job.libraries) shard.args.add("-library=" + f.toAbsolutePath());
+				if(!rest.isEmpty()) shard.args.add("-library=" + restJar.toAbsolutePath());
+				if(job.mcpMappingsZip != null) shard.args.add("-mcpmappings=" + job.mcpMappingsZip.toAbsolutePath());
+				shard.args.add("-linemap=" + changedLinemapFile.toAbsolutePath());
+				if(saferBytecodeProvider) shard.args.add("-safer-bytecode-provider");
+				
+				//jobs run one at a time, so the heap only has to fit the biggest one
+				shard.biggestInput = Math.max(shard.biggestInput, Files.size(changedJar));
+				shard.biggestLibraries = Math.max(shard.biggestLibraries, libraryBytes + (rest.isEmpty() ? 0 : Files.size(restJar)));
+				
+				stores.add(() -> {
+					try {
+						int stored = cache.store(changedSourcesJar, changedLinemapFile);
+						getLogger().lifecycle("] cached sources for {} classes", stored);
+					} catch (IOException e) {
+						throw new UncheckedIOException(e);
+					}
+				});
+			}
+		}
+		
+		shardList.removeIf(shard -> shard.args.isEmpty());
+		if(shardList.size() == 1) {
+			Shard shard = shardList.get(0);
+			List<String> args = shard.fullArgs(fernflowerOptions, getNumThreads());
+			String heap = singleProcessHeap(shard.biggestInput, shard.biggestLibraries);
+			
+			getLogger().lifecycle("|-> Starting ForkedFFExector for {} job{} (max heap: {})...", stores.size(), stores.size() == 1 ? "" : "s", heap == null ? "the JVM's default" : heap);
+			getLogging().captureStandardOutput(LogLevel.LIFECYCLE);
+			ExecResult result = forkedJavaexec(spec -> {
+				GradleSupport.setMainClass(spec, ForkedFFExecutor.class.getName());
+				if(heap != null) spec.setMaxHeapSize(heap);
+				spec.setArgs(args);
+				spec.setErrorOutput(System.err);
+				spec.setStandardOutput(System.out);
+			});
+			getLogger().lifecycle("|-> Exec finished?");
+			result.rethrowFailure();
+			result.assertNormalExitValue();
+			getLogger().lifecycle("|-> Exec success!");
+		} else if(shardList.size() > 1) {
+			forkShards(shardList, fernflowerOptions);
+		}
+		
+		stores.forEach(Runnable::run);
+		
+		for(int i = 0; i < jobs.size(); i++) {
+			SourceGenerationJob job = jobs.get(i);
+			getLogger().lifecycle("|-> Assembling {} from the cache...", job.sourcesJar.getFileName());
+			int missing = caches.get(i).assemble(job.sourcesJar, job.linemapFile);
+			if(missing != 0) getLogger().warn("!! Fernflower didn't produce sources for {} classes; they're missing from the sources jar", missing);
+		}
+	}
+	
+	private void forkShards(List<Shard> shardList, List<String> fernflowerOptions) throws IOException {
+		List<String> heaps = new ArrayList<>();
+		long biggestHeap = 0;
+		for(Shard shard : shardList) {
+			String heap = maxHeap != null ? maxHeap : Math.max(512, estimateHeapMb(shard.biggestInput, shard.biggestLibraries)) + "m";
+			heaps.add(heap);
+			biggestHeap = Math.max(biggestHeap, heapBytes(heap));
+		}
+		
+		//every shard at once, each with its own heap, can easily add up to more than the machine has (which is usually why
+		//you'd shard in the first place), so only run as many at once as fit next to this Gradle JVM
+		int parallel = 1;
+		long physical = physicalMemory();
+		if(physical > 0) {
+			//plus some for the forked JVM's non-heap memory
+			long budget = physical - Runtime.getRuntime().maxMemory();
+			parallel = (int) Math.max(1, Math.min(shardList.size(), budget / (biggestHeap + 256 * MB)));
+		}
+		
+		//threads are divided between the shards running at the same time, so numThreads is still the total
+		int threadsEach = Math.max(1, getNumThreads() / parallel);
+		//javaexec'ing from several threads is fine, but resolving the classpath from several threads isn't
+		FileCollection classpath = getProject().files(forkedJavaexecClasspath().getFiles());
+		
+		getLogger().lifecycle("|-> Starting {} ForkedFFExecutors, {} at a time, {} threads each...", shardList.size(), parallel, threadsEach);
+		ExecutorService exec = Executors.newFixedThreadPool(parallel);
+		List<Future<?>> futures = new ArrayList<>();
+		try {
+			for(int i = 0; i < shardList.size(); i++) {
+				Shard shard = shardList.get(i);
+				List<String> args = shard.fullArgs(fernflowerOptions, threadsEach);
+				String heap = heaps.get(i);
+				Path log = getTemporaryDir().toPath().resolve("shard" + shard.index + ".log");
+				getLogger().lifecycle("\\-> Shard {}: max heap {}, log: {}", shard.index, heap, log);
+				
+				futures.add(exec.submit(() -> {
+					//output from several JVMs at once would be an unreadable mess, so each gets a log file
+					try(OutputStream out = Files.newOutputStream(log)) {
+						ExecResult result = forkedJavaexec(classpath, spec -> {
+							GradleSupport.setMainClass(spec, ForkedFFExecutor.class.getName());
+							spec.setMaxHeapSize(heap);
+							spec.setArgs(args);
+							spec.setErrorOutput(out);
+							spec.setStandardOutput(out);
+							spec.setIgnoreExitValue(true);
+						});
+						if(result.getExitValue() != 0) throw new GradleException("ForkedFFExecutor exited with code " + result.getExitValue() + ", see " + log);
+					}
+					getLogger().lifecycle("\\-> Shard {} finished", shard.index);
+					return null;
+				}));
+			}
+			
+			List<String> failures = new ArrayList<>();
+			for(Future<?> future : futures) {
+				try {
+					future.get();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new GradleException("Interrupted while waiting for Fernflower", e);
+				} catch (ExecutionException e) {
+					failures.add(e.getCause().getMessage());
+				}
+			}
+			
+			if(!failures.isEmpty()) throw new GradleException(failures.size() + " of " + shardList.size() + " Fernflower shards failed:\n" + String.join("\n", failures));
+		} finally {
+			exec.shutdownNow();
+		}
 		getLogger().lifecycle("|-> Exec success!");
 	}
 	
+	//Classes are sorted by name, so packages stay together, and cut into evenly sized runs. A package bigger than one shard
+	//gets split (everything before 1.7 is in net/minecraft/src, so keeping every package whole wouldn't shard much at all).
+	private static List<Set<String>> splitIntoShards(Set<String> classNames, int shardCount) {
+		List<String> sorted = new ArrayList<>(new TreeSet<>(classNames));
+		int n = Math.min(shardCount, sorted.size());
+		
+		List<Set<String>> split = new ArrayList<>();
+		for(int k = 0; k < n; k++) {
+			split.add(new TreeSet<>(sorted.subList(sorted.size() * k / n, sorted.size() * (k + 1) / n)));
+		}
+		return split;
+	}
+	
+	private static class Shard {
+		Shard(int index) {
+			this.index = index;
+		}
+		
+		final int index;
+		final List<String> args = new ArrayList<>();
+		long biggestInput, biggestLibraries;
+		
+		List<String> fullArgs(List<String> fernflowerOptions, int threads) {
+			List<String> full = new ArrayList<>(fernflowerOptions);
+			full.add("-" + IFernflowerPreferences.THREADS + "=" + threads);
+			full.addAll(args);
+			return full;
+		}
+	}
+	
+	private static final long MB = 1024 * 1024;
+	
+	//Fernflower keeps a lot of bookkeeping around for every class it decompiles, and library classes get read into memory
+	//too, just with less attached. These numbers fit 1.2 through 1.7 with some room to spare.
+	private static long estimateHeapMb(long inputBytes, long libraryBytes) {
+		return 256 + (inputBytes * 80 + libraryBytes * 4) / MB;
+	}
+	
+	//-Xmx for a lone Fernflower JVM, or null to leave the JVM's default (a quarter of physical memory) alone. That default
+	//is plenty for most jars, and on a big machine it's more than any fixed number would be, so the estimate only gets
+	//passed when it's bigger than the default.
+	private @Nullable String singleProcessHeap(long inputBytes, long libraryBytes) {
+		if(maxHeap != null) return maxHeap;
+		
+		long physical = physicalMemory();
+		long estimate = estimateHeapMb(inputBytes, libraryBytes) * MB;
+		if(physical <= 0 || estimate <= physical / 4) return null;
+		return Math.min(estimate, physical * 3 / 4) / MB + "m";
+	}
+	
+	//reads an -Xmx style size ("512m", "3G", "1048576")
+	private static long heapBytes(String heap) {
+		String trimmed = heap.trim().toLowerCase(Locale.ROOT);
+		long unit = 1;
+		if(trimmed.endsWith("k")) unit = 1024;
+		else if(trimmed.endsWith("m")) unit = MB;
+		else if(trimmed.endsWith("g")) unit = 1024 * MB;
+		if(unit != 1) trimmed = trimmed.substring(0, trimmed.length() - 1);
+		
+		try {
+			return Long.parseLong(trimmed) * unit;
+		} catch (NumberFormatException e) {
+			throw new GradleException("genSources maxHeap should look like '512m' or '3G', but it's '" + heap + "'");
+		}
+	}
+	
+	//-1 if the JVM won't say. On newer JDKs this respects container limits, like the JVM's own default heap size does
+	private static long physicalMemory() {
+		OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+		if(os instanceof com.sun.management.OperatingSystemMXBean) return ((com.sun.management.OperatingSystemMXBean) os).getTotalPhysicalMemorySize();
+		else return -1;
+	}
+	
+	//so a different fernflower gets different cache keys
+	private static String fernflowerVersion() {
+		CodeSource source = IFernflowerPreferences.class.getProtectionDomain().getCodeSource();
+		return source == null || source.getLocation() == null ? "unknown" : source.getLocation().getPath();
+	}
+	
 	private void linemap(Path mappedJar, Path linemappedJar, Path linemapFile, Path sourcesJar) throws IOException {
 		getLogger().lifecycle("|-> Configuring LineNumberRemapper...");
 		
@@ -135,6 +406,25 @@ public class GenSourcesTask extends DefaultTask implements LoomTaskExt {
 		}
 	}
 	
+	@Input
+	@Optional
+	public @Nullable String getMaxHeap() {
+		return maxHeap;
+	}
+	
+	public void setMaxHeap(@Nullable String maxHeap) {
+		this.maxHeap = maxHeap;
+	}
+	
+	@Input
+	public int getShards() {
+		return shards;
+	}
+	
+	public void setShards(int shards) {
+		this.shards = shards;
+	}
+	
 	@Input
 	public int getNumThreads() {
 		return numThreads;
@@ -0,0 +1,141 @@
+package net.fabricmc.loom.task;
+
+import net.fabricmc.loom.Constants;
+import net.fabricmc.loom.WellKnownLocations;
+import net.fabricmc.loom.util.AtomicFiles;
+import net.fabricmc.loom.util.Checksum;
+import net.fabricmc.loom.util.LoomTaskExt;
+import org.gradle.api.DefaultTask;
+import org.gradle.api.GradleException;
+import org.gradle.api.tasks.InputFile;
+import org.gradle.api.tasks.Optional;
+import org.gradle.api.tasks.TaskAction;
+
+import javax.annotation.Nullable;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Unpacks a zip written by {@code voldeloomExportBundle} into the current Gradle home: {@code cache/} into Voldeloom's
+ * user cache, and {@code repo/} into the Maven repository LoomGradlePlugin adds to every project. Every file is checked
+ * against the bundle's index on the way in.
+ * <p>
+ * The bundle is set with {@code -Pvoldeloom.bundle=path/to/bundle.zip}, or the {@code bundleFile} property. Typical
+ * use is {@code gradle voldeloomImportBundle -Pvoldeloom.bundle=... --offline} while baking a CI image; later builds
+ * can then use {@code --offline} too.
+ */
+public class ImportBundleTask extends DefaultTask implements LoomTaskExt {
+	public ImportBundleTask() {
+		setGroup(Constants.TASK_GROUP_TOOLS);
+		setDescription("Unpacks a zip made by voldeloomExportBundle into this Gradle home. Pass -Pvoldeloom.bundle=(path).");
+		getOutputs().upToDateWhen(__ -> false);
+		
+		Object bundleProp = getProject().findProperty("voldeloom.bundle");
+		if(bundleProp != null) bundleFile = getProject().file(bundleProp);
+	}
+	
+	private @Nullable File bundleFile;
+	
+	@InputFile
+	@Optional
+	public @Nullable File getBundleFile() {
+		return bundleFile;
+	}
+	
+	public void setBundleFile(Object bundleFile) {
+		this.bundleFile = getProject().file(bundleFile);
+	}
+	
+	@TaskAction
+	public void importBundle() throws IOException {
+		if(bundleFile == null) throw new GradleException("No bundle to import. Pass -Pvoldeloom.bundle=(path to a zip made by voldeloomExportBundle).");
+		
+		Path userCache = WellKnownLocations.getUserCache(getProject());
+		Path repo = WellKnownLocations.getBundleRepository(getProject());
+		getLogger().lifecycle("|-> Importing {} into {} and {}...", bundleFile, userCache, repo);
+		
+		//entry name -> { size, sha1 }
+		Map<String, String[]> index = null;
+		int imported = 0, skipped = 0;
+		
+		try(ZipInputStream zip = new ZipInputStream(Files.newInputStream(bundleFile.toPath()))) {
+			ZipEntry entry;
+			while((entry = zip.getNextEntry()) != null) {
+				if(entry.isDirectory()) continue;
+				String name = entry.getName();
+				
+				if(name.equals(ExportBundleTask.INDEX_NAME)) {
+					index = readIndex(new BufferedReader(new InputStreamReader(zip, StandardCharsets.UTF_8)));
+					continue;
+				}
+				
+				if(index == null) throw new GradleException(bundleFile + " doesn't start with a " + ExportBundleTask.INDEX_NAME + "; was it made by voldeloomExportBundle?");
+				String[] expected = index.get(name);
+				if(expected == null) throw new GradleException(bundleFile + " contains " + name + ", which isn't in its index");
+				
+				Path dest;
+				if(name.startsWith("cache/")) dest = resolveInside(userCache, name.substring("cache/".length()));
+				else if(name.startsWith("repo/")) dest = resolveInside(repo, name.substring("repo/".length()));
+				else throw new GradleException(bundleFile + " contains " + name + ", which isn't in cache/ or repo/");
+				
+				//Most things in the cache are named by their contents, so a file that's already there is very likely the same one
+				if(Files.exists(dest) && Files.size(dest) == Long.parseLong(expected[0])) {
+					skipped++;
+					continue;
+				}
+				
+				Files.createDirectories(dest.getParent());
+				MessageDigest sha1 = Checksum.SHA1.get();
+				Path tmp = AtomicFiles.tempSibling(dest);
+				try {
+					Files.copy(new DigestInputStream(zip, sha1), tmp);
+					String actualSha1 = Checksum.toHexString(sha1.digest());
+					if(!actualSha1.equalsIgnoreCase(expected[1])) {
+						throw new GradleException(name + " in " + bundleFile + " has SHA-1 hash " + actualSha1 + ", but its index says " + expected[1]);
+					}
+					AtomicFiles.publish(tmp, dest);
+				} finally {
+					Files.deleteIfExists(tmp);
+				}
+				imported++;
+			}
+		}
+		
+		if(index == null) throw new GradleException(bundleFile + " is empty");
+		getLogger().lifecycle("] imported {} files ({} were already there)", imported, skipped);
+	}
+	
+	private Map<String, String[]> readIndex(BufferedReader reader) throws IOException {
+		Map<String, String[]> index = new HashMap<>();
+		
+		String header = reader.readLine();
+		if(!ExportBundleTask.INDEX_HEADER.equals(header)) throw new GradleException("Unknown bundle format '" + header + "', expected '" + ExportBundleTask.INDEX_HEADER + "'");
+		
+		String line;
+		while((line = reader.readLine()) != null) {
+			String[] split = line.split("\t");
+			if(split.length != 3) continue;
+			index.put(split[0], new String[] { split[1], split[2] });
+		}
+		
+		return index;
+	}
+	
+	//don't let a crafted bundle write outside the gradle home
+	private static Path resolveInside(Path root, String relative) {
+		Path resolved = root.resolve(relative).normalize();
+		if(!resolved.startsWith(root.normalize())) throw new GradleException("Bundle entry " + relative + " points outside of " + root);
+		return resolved;
+	}
+}
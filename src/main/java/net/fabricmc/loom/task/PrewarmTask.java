@@ -0,0 +1,252 @@
+package net.fabricmc.loom.task;
+
+import net.fabricmc.loom.Constants;
+import net.fabricmc.loom.LoomGradleExtension;
+import net.fabricmc.loom.LoomGradlePlugin;
+import net.fabricmc.loom.util.Checksum;
+import net.fabricmc.loom.util.LoomTaskExt;
+import net.fabricmc.loom.util.OperatingSystem;
+import org.gradle.api.DefaultTask;
+import org.gradle.api.GradleException;
+import org.gradle.api.artifacts.repositories.ArtifactRepository;
+import org.gradle.api.artifacts.repositories.MavenArtifactRepository;
+import org.gradle.api.tasks.Input;
+import org.gradle.api.tasks.TaskAction;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Runs Minecraft setup for a list of (minecraft, forge, mappings) versions, filling the shared user cache, so the first
+ * sync of a real project using one of them doesn't have to. Meant for nightly jobs warming up dev machines and CI images.
+ * <p>
+ * ProviderGraph is married to a project's configurations, so each version gets a tiny throwaway build (just the three
+ * dependencies, this project's repositories, and the download settings from its {@code volde} block) in the task's temporary directory, run by a separate Gradle process
+ * against the same Gradle home. {@code parallelism} of them run at once; everything they write into the user cache is
+ * published atomically, so they don't trip over each other.
+ * <p>
+ * Only unified-jar (1.3+) Forge versions can be prewarmed, since there's no way to say {@code forgeClient}/{@code forgeServer}.
+ * <p>
+ * Versions come from the {@code target} method, and/or a {@code voldeloom.prewarm} project property like
+ * {@code -Pvoldeloom.prewarm=minecraft,forge,mappings;minecraft,forge,mappings}.
+ */
+public class PrewarmTask extends DefaultTask implements LoomTaskExt {
+	public PrewarmTask() {
+		setGroup(Constants.TASK_GROUP_TOOLS);
+		setDescription("Runs Minecraft setup for a list of Minecraft/Forge/mappings versions, to fill the shared user cache.");
+		getOutputs().upToDateWhen(__ -> false);
+		
+		Object prop = getProject().findProperty("voldeloom.prewarm");
+		if(prop != null) {
+			for(String target : prop.toString().split(";")) {
+				if(target.trim().isEmpty()) continue;
+				String[] split = target.split(",");
+				if(split.length != 3) throw new GradleException("Expected 'minecraft,forge,mappings' in voldeloom.prewarm, found '" + target + "'");
+				target(split[0].trim(), split[1].trim(), split[2].trim());
+			}
+		}
+	}
+	
+	private final List<List<String>> targets = new ArrayList<>();
+	private int parallelism = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+	
+	/**
+	 * @param minecraft a Minecraft version, like {@code "1.4.7"}
+	 * @param forge     what you'd put in the {@code forge} configuration, like {@code "net.minecraftforge:forge:1.4.7-6.6.2.534:universal@zip"}
+	 * @param mappings  what you'd put in the {@code mappings} configuration
+	 */
+	public void target(String minecraft, String forge, String mappings) {
+		targets.add(Arrays.asList(minecraft, forge, mappings));
+	}
+	
+	@Input
+	public List<List<String>> getTargets() {
+		return targets;
+	}
+	
+	@Input
+	public int getParallelism() {
+		return parallelism;
+	}
+	
+	public void setParallelism(int parallelism) {
+		this.parallelism = parallelism;
+	}
+	
+	@TaskAction
+	public void prewarm() throws Exception {
+		if(targets.isEmpty()) {
+			getLogger().lifecycle("] nothing to prewarm. Call `target(minecraft, forge, mappings)` on this task, or pass -Pvoldeloom.prewarm=minecraft,forge,mappings;...");
+			return;
+		}
+		
+		String classpath = pluginClasspath();
+		String repositories = repositories();
+		String settings = extensionSettings();
+		
+		//(null when Gradle is embedded, e.g. run through the tooling API by some IDEs)
+		File gradleHome = getProject().getGradle().getGradleHomeDir();
+		if(gradleHome == null) throw new GradleException("voldeloomPrewarm starts a Gradle process for each version, but this build doesn't know where its Gradle installation is. Run it from the command line (gradlew voldeloomPrewarm) instead.");
+		Path gradleBin = gradleHome.toPath().resolve("bin").resolve(OperatingSystem.CURRENT.shortName.equals("windows") ? "gradle.bat" : "gradle");
+		if(!Files.isRegularFile(gradleBin)) throw new GradleException("voldeloomPrewarm starts a Gradle process for each version, but there's no Gradle launcher at " + gradleBin + ".");
+		Path gradleUserHome = getProject().getGradle().getGradleUserHomeDir().toPath();
+		
+		//pass along offline and refreshDependencies mode
+		List<String> extraArgs = new ArrayList<>();
+		if(getProject().getGradle().getStartParameter().isOffline()) extraArgs.add("--offline");
+		else if(getLoomGradleExtension().offline) extraArgs.add("-Pvoldeloom.offline");
+		if(getLoomGradleExtension().refreshDependencies) extraArgs.add("-Pvoldeloom.refreshDependencies");
+		
+		int threads = Math.max(1, Math.min(parallelism, targets.size()));
+		getLogger().lifecycle("|-> Prewarming {} versions, {} at a time...", targets.size(), threads);
+		ExecutorService exec = Executors.newFixedThreadPool(threads);
+		List<Future<?>> futures = new ArrayList<>();
+		try {
+			for(List<String> target : targets) {
+				Path dir = getTemporaryDir().toPath().resolve(Checksum.stringHexHash(String.join("\n", target), Checksum.SHA1.get()).substring(0, 12));
+				writeBuild(dir, target, classpath, repositories, settings);
+				
+				futures.add(exec.submit(() -> {
+					runBuild(dir, target, gradleBin, gradleUserHome, extraArgs);
+					return null;
+				}));
+			}
+			
+			List<String> failures = new ArrayList<>();
+			for(int i = 0; i < futures.size(); i++) {
+				try {
+					futures.get(i).get();
+				} catch (Exception e) {
+					failures.add(String.join(" / ", targets.get(i)) + ": " + (e.getCause() != null ? e.getCause().getMessage() : e.getMessage()));
+				}
+			}
+			
+			if(!failures.isEmpty()) throw new GradleException("Failed to prewarm " + failures.size() + " of " + targets.size() + " versions:\n" + String.join("\n", failures));
+		} finally {
+			exec.shutdownNow();
+		}
+		
+		getLogger().lifecycle("] prewarmed {} versions", targets.size());
+	}
+	
+	private void writeBuild(Path dir, List<String> target, String classpath, String repositories, String settings) throws IOException {
+		Files.createDirectories(dir);
+		Files.write(dir.resolve("settings.gradle"), "rootProject.name = 'voldeloom-prewarm'\n".getBytes(StandardCharsets.UTF_8));
+		
+		String buildGradle = "buildscript {\n" +
+			"\tdependencies {\n" +
+			"\t\tclasspath files(" + classpath + ")\n" +
+			"\t}\n" +
+			"}\n" +
+			"\n" +
+			"apply plugin: " + LoomGradlePlugin.class.getName() + "\n" +
+			"\n" +
+			"repositories {\n" +
+			repositories +
+			"}\n" +
+			"\n" +
+			"volde {\n" +
+			settings +
+			"}\n" +
+			"\n" +
+			"dependencies {\n" +
+			"\tminecraft 'com.mojang:minecraft:" + groovyEscape(target.get(0)) + "'\n" +
+			"\tforge '" + groovyEscape(target.get(1)) + "'\n" +
+			"\tmappings '" + groovyEscape(target.get(2)) + "'\n" +
+			"}\n" +
+			"\n" +
+			"tasks.register('voldeloomPrewarmTarget') {\n" +
+			"\tdoLast {\n" +
+			"\t\tdef graph = volde.getProviderGraph()\n" +
+			"\t\tif(graph.assets != null) graph.assets.downloadAssets()\n" +
+			"\t}\n" +
+			"}\n";
+		Files.write(dir.resolve("build.gradle"), buildGradle.getBytes(StandardCharsets.UTF_8));
+	}
+	
+	private void runBuild(Path dir, List<String> target, Path gradleBin, Path gradleUserHome, List<String> extraArgs) throws IOException, InterruptedException {
+		List<String> command = new ArrayList<>(Arrays.asList(
+			gradleBin.toString(),
+			"--project-dir", dir.toString(),
+			"--gradle-user-home", gradleUserHome.toString(),
+			"--no-daemon",
+			"--stacktrace",
+			"voldeloomPrewarmTarget"
+		));
+		command.addAll(extraArgs);
+		
+		Path log = dir.resolve("prewarm.log");
+		getLogger().lifecycle("\\-> Starting {} (log: {})", String.join(" / ", target), log);
+		
+		Process process = new ProcessBuilder(command)
+			.directory(dir.toFile())
+			.redirectErrorStream(true)
+			.redirectOutput(log.toFile())
+			.start();
+		int exit = process.waitFor();
+		if(exit != 0) throw new IOException("Gradle exited with code " + exit + ", see " + log);
+		
+		getLogger().lifecycle("\\-> Finished {}", String.join(" / ", target));
+	}
+	
+	//The plugin might not be on the buildscript classpath configuration (the `plugins {}` block), so ask its classloader
+	private String pluginClasspath() throws URISyntaxException {
+		List<String> files = new ArrayList<>();
+		
+		ClassLoader loader = LoomGradlePlugin.class.getClassLoader();
+		if(loader instanceof URLClassLoader) {
+			for(URL url : ((URLClassLoader) loader).getURLs()) {
+				if(url.getProtocol().equals("file")) files.add("'" + groovyEscape(Paths.get(url.toURI()).toString()) + "'");
+			}
+		}
+		
+		if(files.isEmpty()) {
+			//at least the plugin itself
+			File self = Paths.get(LoomGradlePlugin.class.getProtectionDomain().getCodeSource().getLocation().toURI()).toFile();
+			files.add("'" + groovyEscape(self.getAbsolutePath()) + "'");
+		}
+		
+		return String.join(", ", files);
+	}
+	
+	//so mappings from a maven the plugin doesn't already know about can be found
+	private String repositories() {
+		StringBuilder out = new StringBuilder();
+		for(ArtifactRepository repo : getProject().getRepositories()) {
+			if(repo instanceof MavenArtifactRepository) {
+				out.append("\tmaven { url '").append(groovyEscape(((MavenArtifactRepository) repo).getUrl().toString())).append("' }\n");
+			}
+		}
+		return out.toString();
+	}
+	
+	//so the prewarm builds download from the same places (mirrors and all) and fill the same cache entries as this one
+	private String extensionSettings() {
+		LoomGradleExtension ext = getLoomGradleExtension();
+		StringBuilder out = new StringBuilder();
+		if(ext.customManifestUrl != null) out.append("\tcustomManifestUrl = '").append(groovyEscape(ext.customManifestUrl)).append("'\n");
+		out.append("\tlibrariesBaseUrl = '").append(groovyEscape(ext.librariesBaseUrl)).append("'\n");
+		out.append("\tfmlLibrariesBaseUrl = '").append(groovyEscape(ext.fmlLibrariesBaseUrl)).append("'\n");
+		out.append("\tresourcesBaseUrl = '").append(groovyEscape(ext.resourcesBaseUrl)).append("'\n");
+		out.append("\tdownloadThreads = ").append(ext.downloadThreads).append("\n");
+		out.append("\trevalidateAfter = ").append(ext.revalidateAfter == null ? "null" : "java.time.Duration.parse('" + ext.revalidateAfter + "')").append("\n");
+		return out.toString();
+	}
+	
+	private static String groovyEscape(String s) {
+		return s.replace("\\", "\\\\").replace("'", "\\'");
+	}
+}
@@ -3,6 +3,7 @@ package net.fabricmc.loom.task;
 import net.fabricmc.loom.Constants;
 import net.fabricmc.loom.RemappedConfigurationEntry;
 import net.fabricmc.loom.RunConfig;
+import net.fabricmc.loom.util.DirectorySync;
 import net.fabricmc.loom.util.LoomTaskExt;
 import org.gradle.api.DefaultTask;
 import org.gradle.api.tasks.Internal;
@@ -12,18 +13,20 @@ import java.io.File;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.StandardCopyOption;
 import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.stream.Collectors;
 
 /**
  * Gradle task that copies and pastes coremods into the Forge `coremods` folder, because Forge doesn't support reading them off the classpath.
+ * Only changed files are copied, and coremods that were removed from the buildscript are removed from the folder too; see DirectorySync.
  */
 public class RemappedConfigEntryFolderCopyTask extends DefaultTask implements LoomTaskExt {
 	public RemappedConfigEntryFolderCopyTask() {
 		setGroup(Constants.TASK_GROUP_PLUMBING);
 		setDescription("Copies and pastes coremods into the Forge `coremods` folder, because this version of Minecraft Forge only loads coremods out of a very specific folder, `.minecraft/coremods`, and not from the classpath.");
-		getOutputs().upToDateWhen(__ -> false); //TODO
+		//(no upToDateWhen: the sync manifests know whether anything needs doing, and the task reports UP-TO-DATE if nothing did)
 	}
 	
 	@Internal
@@ -37,19 +40,24 @@ public class RemappedConfigEntryFolderCopyTask extends DefaultTask implements Lo
 	
 	@TaskAction
 	public void doIt() throws IOException {
+		//several entries can share a folder, so collect everything first; otherwise each one would delete the others' files
+		Map<Path, DirectorySync> syncs = new LinkedHashMap<>();
 		for(RemappedConfigurationEntry entry : getLoomGradleExtension().remappedConfigurationEntries) {
 			String copyToFolder = entry.getCopyToFolder();
 			if(copyToFolder == null || copyToFolder.isEmpty()) continue;
 			
-			for(File file : entry.getOutputConfig().getFiles()) {
-				Path path = file.toPath();
-				for(Path runDir : getRunDirectories()) {
-					Path copyDest = runDir.resolve(copyToFolder);
-					
-					Files.createDirectories(copyDest);
-					Files.copy(path, copyDest.resolve(path.getFileName()), StandardCopyOption.REPLACE_EXISTING);
-				}
+			for(Path runDir : getRunDirectories()) {
+				//(created even if there's no files, so the ones from last time get cleaned up)
+				DirectorySync sync = syncs.computeIfAbsent(runDir.resolve(copyToFolder), d -> new DirectorySync(d, getTemporaryDir().toPath()));
+				for(File file : entry.getOutputConfig().getFiles()) sync.put(file.getName(), file.toPath());
 			}
 		}
+		
+		boolean didWork = false;
+		for(Map.Entry<Path, DirectorySync> sync : syncs.entrySet()) {
+			Files.createDirectories(sync.getKey());
+			didWork |= sync.getValue().sync(getLogger());
+		}
+		setDidWork(didWork);
 	}
 }
@@ -26,46 +26,87 @@ package net.fabricmc.loom.task;
 
 import net.fabricmc.loom.Constants;
 import net.fabricmc.loom.LoomGradleExtension;
+import net.fabricmc.loom.WellKnownLocations;
+import net.fabricmc.loom.mcp.Srg;
 import net.fabricmc.loom.newprovider.RemapperMcp;
+import net.fabricmc.loom.util.AtomicFiles;
+import net.fabricmc.loom.util.Checksum;
+import net.fabricmc.loom.util.ClasspathSkeletons;
 import net.fabricmc.loom.util.GradleSupport;
-import org.gradle.api.Project;
+import net.fabricmc.loom.util.ZipUtil;
+import org.gradle.api.file.FileCollection;
 import org.gradle.api.file.RegularFileProperty;
 import org.gradle.api.plugins.JavaPlugin;
+import org.gradle.api.provider.Property;
+import org.gradle.api.tasks.CacheableTask;
+import org.gradle.api.tasks.Classpath;
+import org.gradle.api.tasks.Input;
 import org.gradle.api.tasks.InputFile;
+import org.gradle.api.tasks.Optional;
+import org.gradle.api.tasks.PathSensitive;
+import org.gradle.api.tasks.PathSensitivity;
 import org.gradle.api.tasks.TaskAction;
 import org.gradle.jvm.tasks.Jar;
+import org.objectweb.asm.ClassReader;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystem;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 /**
  * Gradle task that remaps the mod under development into official names so you can release it!
  * 
  * TODO: Investigate...
+ * <p>
+ * The inputs and outputs are declared, so this is up-to-date (or pulled from the build cache) when nothing changed.
+ * When only some classes changed, the previous output is patched instead of remapping the whole jar again.
  */
 @SuppressWarnings({
 	"UnstableApiUsage", //When the IDE is working against Gradle 4, a lot of the Gradle API was incubating
 	"RedundantSuppression" //And when it's woring against Gradle 7, it got stabilized
 })
+@CacheableTask
 public class ReobfJarTask extends Jar {
 	public ReobfJarTask() {
 		setGroup(Constants.TASK_GROUP_PLUMBING);
 		setDescription("Remaps the mod under development into the distribution naming scheme, ready for publishing.");
-		getOutputs().upToDateWhen(__ -> false); //TODO
+		
+		//TODO: correct?
+		//(lazy; nothing is resolved until the task runs)
+		remapClasspath = getProject().getConfigurations().getByName(JavaPlugin.COMPILE_CLASSPATH_CONFIGURATION_NAME);
+		skeletonCache = WellKnownLocations.getClasspathSkeletonCache(getProject());
+		
+		//Without knowing which mappings are in use (Minecraft wasn't set up when Gradle read the inputs), a previous result can't be trusted
+		getOutputs().upToDateWhen(__ -> reobfMappingsKey.isPresent());
+		getOutputs().cacheIf("the reobf mappings are known", __ -> reobfMappingsKey.isPresent());
 	}
 	
 	private final RegularFileProperty input = GradleSupport.getRegularFileProperty(getProject());
-
+	private final Property<String> reobfMappingsKey = getProject().getObjects().property(String.class);
+	private final FileCollection remapClasspath;
+	private final Path skeletonCache;
+	
 	@TaskAction
 	public void doTask() throws Throwable {
-		Project project = getProject();
-		LoomGradleExtension extension = project.getExtensions().getByType(LoomGradleExtension.class);
+		LoomGradleExtension extension = getProject().getExtensions().getByType(LoomGradleExtension.class);
 		
-		if(extension.getProviderGraph().reobfSrg == null) {
+		Srg reobfSrg = extension.getProviderGraph().getReobfSrg();
+		if(reobfSrg == null) {
 			for(int i = 0; i < 10; i++) getLogger().error("[Voldeloom] RELEASE REMAPPING FOR SPLIT JARS (1.2.5) IS CURRENTLY BROKEN!!!!!!! SORRY!!!");
 			return;
 		}
@@ -73,26 +114,191 @@ public class ReobfJarTask extends Jar {
 		Path input = this.getInput().getAsFile().get().toPath();
 		Path output = this.getArchivePath().toPath(); //TODO: deprecated and think it's missing in gradle 4 (needs GradleSupport reflection hell)
 		
-		//TODO: correct?
-		Set<Path> remapClasspath = project.getConfigurations()
-			.getByName(JavaPlugin.COMPILE_CLASSPATH_CONFIGURATION_NAME)
+		Set<Path> remapClasspath = this.remapClasspath
 			.getFiles()
 			.stream()
 			.map(File::toPath)
 			.filter(p -> !input.equals(p) && Files.exists(p))
 			.collect(Collectors.toCollection(LinkedHashSet::new));
+		remapClasspath = new ClasspathSkeletons(skeletonCache, getLogger()).skeletonize(remapClasspath);
+		
+		//Anything that affects how every class gets remapped. If it's the same as last time, classes that didn't change
+		//don't need to be remapped again.
+		MessageDigest environmentSha = Checksum.SHA1.get();
+		environmentSha.update(Checksum.fileHexHash(extension.getProviderGraph().getReobfSrgFile(), Checksum.SHA1.get()).getBytes(StandardCharsets.UTF_8));
+		for(Path cp : remapClasspath) environmentSha.update((cp + "\t" + Files.size(cp) + "\t" + Files.getLastModifiedTime(cp).toMillis() + "\n").getBytes(StandardCharsets.UTF_8));
+		String environmentHash = Checksum.toHexString(environmentSha.digest());
+		
+		Map<String, ClassSnapshot> snapshot = snapshotClasses(input);
+		Path lastRunFile = getTemporaryDir().toPath().resolve("last-run.txt");
+		//A copy of the last output. The real output can't be used for this; Jar's own action rewrites it before this one runs,
+		//and it might also have been restored from the build cache without this task running.
+		Path lastOutput = getTemporaryDir().toPath().resolve("last-output.jar");
+		
+		boolean patched = false;
+		if(!extension.refreshDependencies && Files.exists(lastRunFile) && Files.exists(lastOutput)) {
+			patched = tryPatch(input, output, lastOutput, reobfSrg, remapClasspath, environmentHash, snapshot, lastRunFile);
+		}
+		
+		if(!patched) {
+			//Jar's own action already wrote an archive here (an empty one; nothing is ever added to this Jar's copy spec).
+			//tiny-remapper's OutputConsumerPath opens the output as a zip filesystem and adds to whatever's inside, so it
+			//has to start from nothing, or a jar left over from some other build would have its stale entries survive.
+			Files.deleteIfExists(output);
+			RemapperMcp.doIt(input, output, reobfSrg, getLogger(), null, remapClasspath);
+		}
 		
-		//TODO: weird
-		Files.deleteIfExists(output);
-		RemapperMcp.doIt(input, output, extension.getProviderGraph().reobfSrg, getLogger(), null, remapClasspath);
-
 		if(Files.notExists(output)) {
 			throw new RuntimeException("Failed to remap " + input + " to " + output + " - file missing!");
 		}
+		
+		//Record what this run looked like, for the next one
+		List<String> thisRun = new ArrayList<>();
+		thisRun.add(environmentHash);
+		thisRun.add(Checksum.fileHexHash(output, Checksum.SHA1.get()));
+		Files.copy(output, lastOutput, StandardCopyOption.REPLACE_EXISTING);
+		snapshot.forEach((entry, classSnapshot) -> thisRun.add(entry + "\t" + classSnapshot.sha1 + "\t" + classSnapshot.hierarchy));
+		Files.createDirectories(lastRunFile.getParent());
+		Files.write(lastRunFile, thisRun, StandardCharsets.UTF_8);
 	}
-
+	
+	/**
+	 * Tries to bring the previous output up to date by only remapping the classes that changed since the last run.
+	 * The unchanged classes go on the remap classpath instead, so tiny-remapper still sees the mod's whole class hierarchy.
+	 * <p>
+	 * This gives up (and returns {@code false}) if the mappings or the classpath changed, if {@code lastOutput} isn't
+	 * the one from the last run, or if a class was removed or changed its supertypes, since that can change how the
+	 * <i>other</i> classes get remapped.
+	 */
+	private boolean tryPatch(Path input, Path output, Path lastOutput, Srg reobfSrg, Set<Path> remapClasspath, String environmentHash, Map<String, ClassSnapshot> snapshot, Path lastRunFile) throws Exception {
+		List<String> lastRun = Files.readAllLines(lastRunFile, StandardCharsets.UTF_8);
+		if(lastRun.size() < 2 || !lastRun.get(0).equals(environmentHash)) return false;
+		if(!lastRun.get(1).equals(Checksum.fileHexHash(lastOutput, Checksum.SHA1.get()))) return false; //edited by hand, half-written, etc
+		
+		Map<String, ClassSnapshot> previousSnapshot = new HashMap<>();
+		for(String line : lastRun.subList(2, lastRun.size())) {
+			String[] split = line.split("\t", 3);
+			if(split.length != 3) return false;
+			previousSnapshot.put(split[0], new ClassSnapshot(split[1], split[2]));
+		}
+		
+		Set<String> changedClasses = new LinkedHashSet<>();
+		for(Map.Entry<String, ClassSnapshot> entry : snapshot.entrySet()) {
+			ClassSnapshot previous = previousSnapshot.get(entry.getKey());
+			if(previous == null) changedClasses.add(entry.getKey());
+			else if(!previous.sha1.equals(entry.getValue().sha1)) {
+				if(!previous.hierarchy.equals(entry.getValue().hierarchy)) return false;
+				changedClasses.add(entry.getKey());
+			}
+		}
+		if(!snapshot.keySet().containsAll(previousSnapshot.keySet())) return false;
+		
+		getLogger().lifecycle("|-> Patching {} changed classes into the previous release jar", changedClasses.size());
+		
+		Path tmpDir = getTemporaryDir().toPath();
+		Path changedJar = tmpDir.resolve("changed.jar");
+		Path changedMappedJar = tmpDir.resolve("changed-mapped.jar");
+		Path unchangedJar = tmpDir.resolve("unchanged.jar");
+		Path patchedOutput = AtomicFiles.tempSibling(output);
+		
+		try {
+			for(Path p : Arrays.asList(changedJar, changedMappedJar, unchangedJar)) Files.deleteIfExists(p);
+			
+			//split the input into the classes that need remapping, and the ones that only need to be on the classpath
+			try(FileSystem inputFs = ZipUtil.openFs(input); FileSystem changedFs = ZipUtil.createFs(changedJar); FileSystem unchangedFs = ZipUtil.createFs(unchangedJar)) {
+				for(String entry : snapshot.keySet()) {
+					copyEntry(inputFs, changedClasses.contains(entry) ? changedFs : unchangedFs, entry, entry);
+				}
+			}
+			
+			Set<Path> patchClasspath = new LinkedHashSet<>(remapClasspath);
+			if(Files.exists(unchangedJar)) patchClasspath.add(unchangedJar); //zipfs doesn't write empty jars
+			if(Files.exists(changedJar)) RemapperMcp.doIt(changedJar, changedMappedJar, reobfSrg, getLogger(), null, patchClasspath);
+			
+			//Put it all back together. Non-class files are always taken from the input, since they're cheap to copy.
+			try(FileSystem inputFs = ZipUtil.openFs(input);
+			    FileSystem previousFs = ZipUtil.openFs(lastOutput);
+			    FileSystem changedMappedFs = Files.exists(changedMappedJar) ? ZipUtil.openFs(changedMappedJar) : null;
+			    FileSystem patchedFs = ZipUtil.createFs(patchedOutput)) {
+				try(Stream<Path> inputEntries = Files.walk(inputFs.getPath("/"))) {
+					for(Path inputPath : (Iterable<Path>) inputEntries::iterator) {
+						if(Files.isDirectory(inputPath)) continue;
+						
+						String entry = inputPath.toString();
+						if(!snapshot.containsKey(entry)) {
+							copyEntry(inputFs, patchedFs, entry, entry);
+							continue;
+						}
+						
+						//mod classes are rarely renamed, but classes in Minecraft's packages (jarmods) can be
+						String internalName = entry.substring(1, entry.length() - ".class".length());
+						String mappedEntry = "/" + reobfSrg.classMappings.getOrDefault(internalName, internalName) + ".class";
+						FileSystem from = changedClasses.contains(entry) ? changedMappedFs : previousFs;
+						if(from == null || Files.notExists(from.getPath(mappedEntry))) {
+							getLogger().info("|-> Couldn't find {} while patching, remapping the whole jar instead", mappedEntry);
+							return false;
+						}
+						copyEntry(from, patchedFs, mappedEntry, mappedEntry);
+					}
+				}
+			}
+			
+			Files.deleteIfExists(output);
+			AtomicFiles.publish(patchedOutput, output);
+			return true;
+		} finally {
+			for(Path p : Arrays.asList(changedJar, changedMappedJar, unchangedJar, patchedOutput)) Files.deleteIfExists(p);
+		}
+	}
+	
+	private static Map<String, ClassSnapshot> snapshotClasses(Path jar) throws IOException {
+		Map<String, ClassSnapshot> snapshot = new TreeMap<>();
+		try(FileSystem fs = ZipUtil.openFs(jar); Stream<Path> entries = Files.walk(fs.getPath("/"))) {
+			for(Path path : (Iterable<Path>) entries::iterator) {
+				if(!path.toString().endsWith(".class") || Files.isDirectory(path)) continue;
+				
+				byte[] bytes = Files.readAllBytes(path);
+				ClassReader reader = new ClassReader(bytes);
+				String hierarchy = reader.getSuperName() + ";" + String.join(",", reader.getInterfaces());
+				snapshot.put(path.toString(), new ClassSnapshot(Checksum.bytesHexHash(bytes, Checksum.SHA1.get()), hierarchy));
+			}
+		}
+		return snapshot;
+	}
+	
+	private static void copyEntry(FileSystem from, FileSystem to, String fromEntry, String toEntry) throws IOException {
+		Path dest = to.getPath(toEntry);
+		if(dest.getParent() != null) Files.createDirectories(dest.getParent());
+		Files.copy(from.getPath(fromEntry), dest);
+	}
+	
+	private static class ClassSnapshot {
+		ClassSnapshot(String sha1, String hierarchy) {
+			this.sha1 = sha1;
+			this.hierarchy = hierarchy;
+		}
+		
+		final String sha1;
+		final String hierarchy;
+	}
+	
 	@InputFile
+	@PathSensitive(PathSensitivity.NONE)
 	public RegularFileProperty getInput() {
 		return input;
 	}
+	
+	@Classpath
+	public FileCollection getRemapClasspath() {
+		return remapClasspath;
+	}
+	
+	/**
+	 * Identifies the reobf mappings without building them. Set in {@code LoomGradlePlugin}, see {@code ProviderGraph#peekReobfMappingsKey}.
+	 */
+	@Input
+	@Optional
+	public Property<String> getReobfMappingsKey() {
+		return reobfMappingsKey;
+	}
 }
@@ -31,29 +31,39 @@ import net.fabricmc.loom.util.GradleSupport;
 import net.fabricmc.loom.util.LoomTaskExt;
 import org.gradle.api.JavaVersion;
 import org.gradle.api.tasks.JavaExec;
+import org.gradle.process.CommandLineArgumentProvider;
 
 import javax.inject.Inject;
 import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Callable;
 
 /**
  * Archetypical Gradle task that starts Minecraft. Make sure to pass an argument when you create it with TaskContainer#register.
+ * <p>
+ * Only the cheap parts of the run config (main class, toolchain, working directory) are applied when the task is created.
+ * The classpath and arguments need Minecraft to be set up, so they're only computed when the task actually runs,
+ * and configuring the task (for example, to run some unrelated task) doesn't resolve anything.
  */
 public class RunTask extends JavaExec implements LoomTaskExt {
 	@Inject
-	public RunTask(RunConfig config) throws Exception {
+	public RunTask(RunConfig config) {
+		this.config = config;
+		
 		setGroup(Constants.TASK_GROUP_RUNNING);
 		
 		LoomGradleExtension extension = getLoomGradleExtension();
-		config = config.cook(extension);
-		setDescription("Starts Minecraft using the '" + config.getName() + "' run configuration.");
+		RunConfig shallowCooked = config.cookWithoutMinecraft(extension);
+		setDescription("Starts Minecraft using the '" + shallowCooked.getName() + "' run configuration.");
 		
 		//Toolchain
-		if(config.getAutoConfigureToolchains()) {
-			boolean couldSetToolchain = GradleSupport.trySetJavaToolchain(this, config.getRunToolchainVersion(), config.getRunToolchainVendor());
+		if(shallowCooked.getAutoConfigureToolchains()) {
+			boolean couldSetToolchain = GradleSupport.trySetJavaToolchain(this, shallowCooked.getRunToolchainVersion(), shallowCooked.getRunToolchainVendor());
 			if(!couldSetToolchain) {
 				getLogger().warn("[Voldeloom] Could not provision a Java 8 toolchain for task '{}'.", getName());
 				getLogger().warn("According to GradleSupport.trySetJavaToolchain, this version of Gradle ({}) doesn't support toolchains.", getProject().getGradle().getGradleVersion());
@@ -65,33 +75,39 @@ public class RunTask extends JavaExec implements LoomTaskExt {
 		}
 
 		//Classpath
-		List<String> classpath = new ArrayList<>();
-
-		//TODO, this should also go in RunConfig#cook, one purpose of this is picking up on mod dependencies 
-		for(File file : getProject().getConfigurations().getByName("runtimeClasspath").getFiles()) {
-			classpath.add(file.getAbsolutePath());
-		}
+		//TODO, this should also go in RunConfig#cook, one purpose of this is picking up on mod dependencies
+		//(the configuration is a lazy FileCollection, so it's resolved when the task runs, not here)
+		classpath(getProject().getConfigurations().getByName("runtimeClasspath"));
 		
 		//TODO what is this about
-		for (Path file : extension.getUnmappedMods()) {
-			if (Files.isRegularFile(file)) {
-				classpath.add(file.toFile().getAbsolutePath());
+		classpath(getProject().files((Callable<List<File>>) () -> {
+			List<File> unmappedMods = new ArrayList<>();
+			for (Path file : extension.getUnmappedMods()) {
+				if (Files.isRegularFile(file)) {
+					unmappedMods.add(file.toFile().getAbsoluteFile());
+				}
 			}
-		}
-		classpath(classpath);
+			return unmappedMods;
+		}));
 		
 		//Arguments
-		jvmArgs(config.getVmArgs());
-		args(config.getProgramArgs());
+		getJvmArgumentProviders().add(new CookedVmArgs());
+		getArgumentProviders().add(new CookedProgramArgs());
 
 		//Main class
-		GradleSupport.setMainClass(this, config.getMainClass());
+		GradleSupport.setMainClass(this, shallowCooked.getMainClass());
 
 		//Pwd
 		Path runDir = config.resolveRunDir().toAbsolutePath();
-		Path realRunDir = getLoomGradleExtension().forgeCapabilities.minecraftRealPath.get().apply(runDir);
-		Files.createDirectories(realRunDir);
+		Path realRunDir = extension.forgeCapabilities.minecraftRealPath.get().apply(runDir);
 		setWorkingDir(realRunDir);
+		doFirst(__ -> {
+			try {
+				Files.createDirectories(realRunDir);
+			} catch (IOException e) {
+				throw new UncheckedIOException("Couldn't create run directory " + realRunDir, e);
+			}
+		});
 		
 		//TODO: horrible kludge for 1.2.5 on Windows lol (it reads APPDATA environment variable)
 		environment("APPDATA", runDir.toString());
@@ -99,4 +115,27 @@ public class RunTask extends JavaExec implements LoomTaskExt {
 		//Stdin
 		setStandardInput(System.in);
 	}
+	
+	private final RunConfig config;
+	private RunConfig cooked;
+	
+	private RunConfig cooked() {
+		if(cooked == null) cooked = config.cook(getLoomGradleExtension());
+		return cooked;
+	}
+	
+	//Not lambdas, so Gradle has a class name to show if it ever complains about these
+	private class CookedVmArgs implements CommandLineArgumentProvider {
+		@Override
+		public Iterable<String> asArguments() {
+			return cooked().getVmArgs();
+		}
+	}
+	
+	private class CookedProgramArgs implements CommandLineArgumentProvider {
+		@Override
+		public Iterable<String> asArguments() {
+			return cooked().getProgramArgs();
+		}
+	}
 }
@@ -2,6 +2,7 @@ package net.fabricmc.loom.task;
 
 import net.fabricmc.loom.Constants;
 import net.fabricmc.loom.RunConfig;
+import net.fabricmc.loom.util.DirectorySync;
 import net.fabricmc.loom.util.LoomTaskExt;
 import org.gradle.api.DefaultTask;
 import org.gradle.api.tasks.OutputDirectories;
@@ -11,28 +12,18 @@ import java.io.File;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.StandardCopyOption;
 import java.util.Collection;
 import java.util.Set;
 import java.util.stream.Collectors;
 
 /**
- * Gradle task that copies Forge's runtime-downloaded libraries into place.
+ * Gradle task that copies Forge's runtime-downloaded libraries into place. Only changed libraries are copied, see DirectorySync.
  */
 public class ShimForgeLibrariesTask extends DefaultTask implements LoomTaskExt {
 	public ShimForgeLibrariesTask() {
 		setGroup(Constants.TASK_GROUP_PLUMBING);
 		setDescription("Copies Forge's runtime-downloaded dependencies into the folder where Forge expects to find them, because Forge tries to download dependencies at game startup, and the server it downloads them from is long-dead.");
-		
-		getOutputs().upToDateWhen(__ -> {
-			Set<File> libs = getLibs();
-			for(Path libDir : getLibraryDirectories()) {
-				for(File lib : libs) {
-					if(Files.notExists(libDir.resolve(lib.getName()))) return false;
-				}
-			}
-			return true;
-		});
+		//(no upToDateWhen: the sync manifests know whether anything needs doing, and the task reports UP-TO-DATE if nothing did)
 	}
 	
 	@OutputDirectories
@@ -51,13 +42,15 @@ public class ShimForgeLibrariesTask extends DefaultTask implements LoomTaskExt {
 	
 	@TaskAction
 	public void shimLibraries() throws IOException {
+		Set<File> libs = getLibs();
+		boolean didWork = false;
 		for(Path forgeLibsDir : getLibraryDirectories()) {
 			Files.createDirectories(forgeLibsDir);
 			
-			for(File lib : getLibs()) {
-				Path libPath = lib.toPath();
-				Files.copy(libPath, forgeLibsDir.resolve(libPath.getFileName()), StandardCopyOption.REPLACE_EXISTING);
-			}
+			DirectorySync sync = new DirectorySync(forgeLibsDir, getTemporaryDir().toPath());
+			for(File lib : libs) sync.put(lib.getName(), lib.toPath());
+			didWork |= sync.sync(getLogger());
 		}
+		setDidWork(didWork);
 	}
 }
@@ -3,30 +3,32 @@ package net.fabricmc.loom.task;
 import net.fabricmc.loom.Constants;
 import net.fabricmc.loom.LoomGradleExtension;
 import net.fabricmc.loom.RunConfig;
+import net.fabricmc.loom.newprovider.AssetDownloader;
+import net.fabricmc.loom.util.DirectorySync;
 import net.fabricmc.loom.util.LoomTaskExt;
 import org.gradle.api.DefaultTask;
 import org.gradle.api.tasks.OutputDirectories;
 import org.gradle.api.tasks.TaskAction;
 
-import java.io.IOException;
-import java.nio.file.FileVisitResult;
-import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.SimpleFileVisitor;
-import java.nio.file.StandardCopyOption;
-import java.nio.file.attribute.BasicFileAttributes;
 import java.util.Collection;
+import java.util.Map;
 import java.util.stream.Collectors;
 
 /**
- * Gradle task that copies Minecraft's assets into place.
+ * Gradle task that puts Minecraft's assets into place.
+ * <p>
+ * The files are links into the asset store (see FileLinks), not copies, and DirectorySync only touches the ones that
+ * changed, so shimming another run directory (or the same one again) costs next to nothing. These old versions of the
+ * game only write to the resources folder when a file is missing or the wrong size, so the store doesn't get scribbled
+ * on through the links.
  */
 //TODO: extend AbstractCopyTask once i figure that out, instead of DefaultTask
 public class ShimResourcesTask extends DefaultTask implements LoomTaskExt {
 	public ShimResourcesTask() {
 		setGroup(Constants.TASK_GROUP_PLUMBING);
 		setDescription("Copies Minecraft's assets into the folder where the client expects to find them, since it tries to download them from a long-dead S3 bucket at game startup, and this version of the game does not support an --assetIndex parameter.");
-		getOutputs().upToDateWhen(__ -> getResourceTargetDirectories().stream().allMatch(Files::exists));
+		//(no upToDateWhen: the sync manifests know whether anything needs doing, and the task reports UP-TO-DATE if nothing did)
 	}
 	
 	@OutputDirectories
@@ -43,35 +45,25 @@ public class ShimResourcesTask extends DefaultTask implements LoomTaskExt {
 	public void doIt() throws Exception {
 		LoomGradleExtension ext = getLoomGradleExtension();
 		
-		Path resourceSourceDirectory = ext.getProviderGraph()
+		AssetDownloader assets = ext.getProviderGraph()
 			.assets
-			.downloadAssets() //<-- actually download them now
-			.getAssetsDownloadDir();
+			.downloadAssets(); //<-- actually download them now
 		
 		//TODO: unplug the task entirely, instead of early exiting
 		if(ext.forgeCapabilities.supportsAssetsDir.get()) {
 			getLogger().lifecycle("Kinda skipping ShimResourcesTask copying because the game supports --assetsDir");
+			setDidWork(false);
 			return;
 		}
 		
+		Map<String, Path> assetObjects = assets.getAssetObjects();
+		boolean didWork = false;
 		for(Path resourceTargetDirectory : getResourceTargetDirectories()) {
-			Files.walkFileTree(resourceSourceDirectory, new SimpleFileVisitor<Path>() {
-				@Override
-				public FileVisitResult preVisitDirectory(Path sourceDirPath, BasicFileAttributes attrs) throws IOException {
-					Path targetDirPath = resourceTargetDirectory.resolve(resourceSourceDirectory.relativize(sourceDirPath));
-					Files.createDirectories(targetDirPath);
-					return FileVisitResult.CONTINUE;
-				}
-				
-				@Override
-				public FileVisitResult visitFile(Path sourceFilePath, BasicFileAttributes attrs) throws IOException {
-					if(sourceFilePath.toString().endsWith(".etag")) return FileVisitResult.CONTINUE;
-					
-					Path targetFilePath = resourceTargetDirectory.resolve(resourceSourceDirectory.relativize(sourceFilePath));
-					Files.copy(sourceFilePath, targetFilePath, StandardCopyOption.REPLACE_EXISTING);
-					return FileVisitResult.CONTINUE;
-				}
-			});
+			didWork |= new DirectorySync(resourceTargetDirectory, getTemporaryDir().toPath())
+				.putAll(assetObjects)
+				.link(true)
+				.sync(getLogger());
 		}
+		setDidWork(didWork);
 	}
 }
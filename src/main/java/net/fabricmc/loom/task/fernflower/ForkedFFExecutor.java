@@ -37,6 +37,7 @@ import java.net.URI;
 import java.nio.file.FileSystem;
 import java.nio.file.FileSystems;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Collections;
@@ -53,6 +54,8 @@ import java.util.zip.ZipFile;
  * Takes one parameter, a single file, each line is treated as command line input.<br>
  * Forces one input file.<br>
  * Forces one output file using @{code -o=/path/to/output}.<br>
+ * Several inputs can be decompiled one after another in the same JVM by separating their options with {@code -job}.
+ * Fernflower options (which come first) apply to all of them.<br>
  * Created by covers1624 on 11/02/19.
  */
 public class ForkedFFExecutor {
@@ -60,13 +63,9 @@ public class ForkedFFExecutor {
 		System.out.println("\\-> ForkedFFExecutor starting. Parsing options...");
 		
 		Map<String, Object> options = new HashMap<>();
-		String input = null;
-		File output = null;
-		File lineMap = null;
-		List<File> libraries = new ArrayList<>();
+		List<List<String>> jobs = new ArrayList<>();
+		List<String> job = new ArrayList<>();
 		
-		Function<String, IBytecodeProvider> bytecodeProviderProvider = FairlyUnsafeNioBytecodeProvider::new;
-
 		boolean isFernflowerOption = true;
 
 		for(String arg : args) {
@@ -79,22 +78,45 @@ public class ForkedFFExecutor {
 				//Custom ForkedFFExecutor option.
 				isFernflowerOption = false;
 
-				if(arg.startsWith("-library=")) {
-					libraries.add(new File(arg.substring("-library=".length())));
-				} else if (arg.startsWith("-output=")) {
-					output = new File(arg.substring("-output=".length()));
-				} else if (arg.startsWith("-linemap=")) {
-					lineMap = new File(arg.substring("-linemap=".length()));
-				} else if (arg.startsWith("-mcpmappings=")) {
-					options.put(IFabricJavadocProvider.PROPERTY_NAME, new McpJavadocProvider(Paths.get(arg.substring("-mcpmappings=".length()))));
-				} else if(arg.equals("-safer-bytecode-provider")) {
-					bytecodeProviderProvider = (__) -> SAFER_BUT_SLOWER_BYTECODE_PROVIDER;
-				} else if(arg.startsWith("-input=")){
-					input = arg.substring("-input=".length());
-				}
+				if(arg.equals("-job")) {
+					if(!job.isEmpty()) jobs.add(job);
+					job = new ArrayList<>();
+				} else job.add(arg);
 			}
 		}
-
+		if(!job.isEmpty()) jobs.add(job);
+		
+		//The point of doing several in one go is that the later ones get a JVM that's already warmed up
+		for(int i = 0; i < jobs.size(); i++) {
+			if(jobs.size() > 1) System.out.println("\\-> Starting job " + (i + 1) + " of " + jobs.size() + "...");
+			decompile(new HashMap<>(options), jobs.get(i));
+		}
+	}
+	
+	private static void decompile(Map<String, Object> options, List<String> args) throws IOException {
+		String input = null;
+		File output = null;
+		File lineMap = null;
+		List<File> libraries = new ArrayList<>();
+		
+		Function<String, IBytecodeProvider> bytecodeProviderProvider = FairlyUnsafeNioBytecodeProvider::new;
+		
+		for(String arg : args) {
+			if(arg.startsWith("-library=")) {
+				libraries.add(new File(arg.substring("-library=".length())));
+			} else if (arg.startsWith("-output=")) {
+				output = new File(arg.substring("-output=".length()));
+			} else if (arg.startsWith("-linemap=")) {
+				lineMap = new File(arg.substring("-linemap=".length()));
+			} else if (arg.startsWith("-mcpmappings=")) {
+				options.put(IFabricJavadocProvider.PROPERTY_NAME, new McpJavadocProvider(Paths.get(arg.substring("-mcpmappings=".length()))));
+			} else if(arg.equals("-safer-bytecode-provider")) {
+				bytecodeProviderProvider = (__) -> SAFER_BUT_SLOWER_BYTECODE_PROVIDER;
+			} else if(arg.startsWith("-input=")){
+				input = arg.substring("-input=".length());
+			}
+		}
+		
 		Objects.requireNonNull(input, "Input not set.");
 		Objects.requireNonNull(output, "Output not set.");
 		
@@ -122,6 +144,7 @@ public class ForkedFFExecutor {
 	private static class FairlyUnsafeNioBytecodeProvider implements IBytecodeProvider, Closeable {
 		public FairlyUnsafeNioBytecodeProvider(String expectedExternalPath) {
 			System.out.println("\\-> [!] Using FairlyUnsafeNioBytecodeProvider");
+			this.expectedExternalPath = Paths.get(expectedExternalPath).toAbsolutePath();
 			try {
 				fs = FileSystems.newFileSystem(URI.create("jar:" + Paths.get(expectedExternalPath).toUri()), Collections.emptyMap());
 			} catch (IOException e) {
@@ -130,14 +153,19 @@ public class ForkedFFExecutor {
 		}
 		
 		private final FileSystem fs;
+		private final Path expectedExternalPath;
 		
 		@Override
 		public byte[] getBytecode(String externalPath, String internalPath) throws IOException {
-			//This class is unsafe because:
-			//1. It blindly assumes `externalPath` refers to the same file as the filesystem opened in the constructor.
-			// (In practice, this is the case when the amount of input files provided to the decompiler is one.)
-			//2. It blindly assumes `internalPath` is never null. The stock IBytecodeProviders check for this and open the entire file instead.
+			//This class is unsafe because it keeps the input jar open as a filesystem, instead of opening it again for every class
+			//like the stock IBytecodeProviders. That only works for `externalPath`s referring to the same file as the filesystem
+			//opened in the constructor, and non-null `internalPath`s (the stock providers open the entire file instead).
+			//GenSourcesTask passes a jar of the classes it already has sources for as a library, so anything else goes the slow way.
 			//But hey it saves like 15 seconds on the fernflower runtime :sunglas
+			if(internalPath == null || !Paths.get(externalPath).toAbsolutePath().equals(expectedExternalPath)) {
+				return SAFER_BUT_SLOWER_BYTECODE_PROVIDER.getBytecode(externalPath, internalPath);
+			}
+			
 			return Files.readAllBytes(fs.getPath(internalPath));
 		}
 		
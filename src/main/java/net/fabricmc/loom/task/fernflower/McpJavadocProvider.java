@@ -42,6 +42,15 @@ public class McpJavadocProvider implements IFabricJavadocProvider {
 	private final Map<String, String> fieldComments = new HashMap<>();
 	private final Map<String, String> methodComments = new HashMap<>();
 	
+	//also used by SourcesCache, which keys on the comments a class would get
+	public String getFieldComment(String name) {
+		return fieldComments.get(name);
+	}
+	
+	public String getMethodComment(String name) {
+		return methodComments.get(name);
+	}
+	
 	@Override
 	public String getClassDoc(StructClass structClass) {
 		//MCP doesn't include class comments
@@ -50,11 +59,11 @@ public class McpJavadocProvider implements IFabricJavadocProvider {
 	
 	@Override
 	public String getFieldDoc(StructClass structClass, StructField structField) {
-		return fieldComments.get(structField.getName());
+		return getFieldComment(structField.getName());
 	}
 	
 	@Override
 	public String getMethodDoc(StructClass structClass, StructMethod structMethod) {
-		return methodComments.get(structMethod.getName());
+		return getMethodComment(structMethod.getName());
 	}
 }
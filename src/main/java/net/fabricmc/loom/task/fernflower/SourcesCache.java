@@ -0,0 +1,253 @@
+package net.fabricmc.loom.task.fernflower;
+
+import net.fabricmc.loom.util.AtomicFiles;
+import net.fabricmc.loom.util.Checksum;
+import net.fabricmc.loom.util.ZipUtil;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.FieldVisitor;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+import javax.annotation.Nullable;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystem;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Decompiled sources for each top-level class, cached between genSources runs, so a mappings or access transformer change
+ * only re-decompiles the classes it actually touched.
+ * <p>
+ * A class's source is keyed by a hash of: its bytecode and its inner classes' bytecode, the Fernflower options (and version),
+ * and the MCP comments that would be attached to its fields and methods. Both the source and the class's block of the
+ * linemap are cached, so the sources jar and linemap file can be put back together from the cache.
+ * <p>
+ * Fernflower also looks at other classes when decompiling one (to pick types for generic calls, for example), and changes
+ * to those aren't part of the key. That can leave a cached class a little out of date; {@code --refresh-dependencies}
+ * (or deleting the cache directory) starts over.
+ */
+public class SourcesCache {
+	public SourcesCache(Path cacheDir, String optionsKey, @Nullable McpJavadocProvider javadoc) {
+		this.cacheDir = cacheDir;
+		this.optionsKey = optionsKey;
+		this.javadoc = javadoc;
+	}
+	
+	private final Path cacheDir;
+	private final String optionsKey;
+	private final @Nullable McpJavadocProvider javadoc;
+	
+	//top-level class internal name -> the class files making it up (the class itself, and inner classes)
+	private final Map<String, List<String>> classFiles = new TreeMap<>();
+	//top-level class internal name -> cache key
+	private final Map<String, String> keys = new HashMap<>();
+	
+	public SourcesCache scan(Path mappedJar) throws IOException {
+		try(FileSystem fs = ZipUtil.openFs(mappedJar); Stream<Path> walk = Files.walk(fs.getPath("/"))) {
+			Set<String> allClasses = new HashSet<>();
+			for(Path path : walk.filter(Files::isRegularFile).collect(Collectors.toList())) {
+				String name = path.toString().substring(1);
+				if(name.endsWith(".class")) allClasses.add(name.substring(0, name.length() - ".class".length()));
+			}
+			for(String className : allClasses) {
+				classFiles.computeIfAbsent(topLevel(className, allClasses), __ -> new ArrayList<>()).add(className + ".class");
+			}
+			
+			for(Map.Entry<String, List<String>> entry : classFiles.entrySet()) {
+				List<String> files = entry.getValue();
+				files.sort(null);
+				
+				MessageDigest sha1 = Checksum.SHA1.get();
+				sha1.update(optionsKey.getBytes(StandardCharsets.UTF_8));
+				Set<String> comments = new TreeSet<>();
+				for(String file : files) {
+					byte[] bytes = Files.readAllBytes(fs.getPath(file));
+					sha1.update(file.getBytes(StandardCharsets.UTF_8));
+					sha1.update(bytes);
+					if(javadoc != null) collectComments(bytes, comments);
+				}
+				for(String comment : comments) sha1.update(comment.getBytes(StandardCharsets.UTF_8));
+				
+				keys.put(entry.getKey(), Checksum.toHexString(sha1.digest()));
+			}
+		}
+		
+		return this;
+	}
+	
+	/**
+	 * @return the top-level classes that aren't cached, and have to be decompiled
+	 */
+	public Set<String> getMisses() {
+		Set<String> misses = new TreeSet<>();
+		keys.forEach((className, key) -> {
+			if(Files.notExists(sourceFile(key))) misses.add(className);
+		});
+		return misses;
+	}
+	
+	public Set<String> getClassNames() {
+		return classFiles.keySet();
+	}
+	
+	/**
+	 * Copies the classes in {@code which}, and their inner classes, from {@code mappedJar} into a new jar at {@code dest}.
+	 */
+	public void writeJar(Path mappedJar, Path dest, Set<String> which) throws IOException {
+		Files.deleteIfExists(dest);
+		try(FileSystem src = ZipUtil.openFs(mappedJar); ZipOutputStream out = new ZipOutputStream(Files.newOutputStream(dest))) {
+			for(String className : which) {
+				for(String file : classFiles.get(className)) {
+					out.putNextEntry(new ZipEntry(file));
+					Files.copy(src.getPath(file), out);
+					out.closeEntry();
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Files the output of a Fernflower run (a sources jar, and its linemap) away into the cache.
+	 * @return how many classes were stored
+	 */
+	public int store(Path decompiledSources, Path decompiledLinemap) throws IOException {
+		Map<String, String> linemapBlocks = Files.exists(decompiledLinemap) ? readLinemapBlocks(decompiledLinemap) : new HashMap<>();
+		
+		int stored = 0;
+		try(FileSystem fs = ZipUtil.openFs(decompiledSources); Stream<Path> walk = Files.walk(fs.getPath("/"))) {
+			for(Path path : walk.filter(Files::isRegularFile).collect(Collectors.toList())) {
+				String name = path.toString().substring(1);
+				if(!name.endsWith(".java")) continue;
+				
+				String className = name.substring(0, name.length() - ".java".length());
+				String key = keys.get(className);
+				if(key == null) continue;
+				
+				Path sourceFile = sourceFile(key);
+				Files.createDirectories(sourceFile.getParent());
+				
+				//linemap first, so a cached source always has its linemap next to it
+				writeAtomically(linemapFile(key), linemapBlocks.getOrDefault(className, "").getBytes(StandardCharsets.UTF_8));
+				writeAtomically(sourceFile, Files.readAllBytes(path));
+				stored++;
+			}
+		}
+		
+		return stored;
+	}
+	
+	/**
+	 * Puts the sources jar and linemap file back together out of the cache.
+	 * @return how many classes were missing from the cache (because Fernflower couldn't decompile them, for example)
+	 */
+	public int assemble(Path sourcesJar, Path linemapFile) throws IOException {
+		int missing = 0;
+		Files.deleteIfExists(sourcesJar);
+		
+		try(ZipOutputStream sources = new ZipOutputStream(Files.newOutputStream(sourcesJar)); OutputStream linemap = Files.newOutputStream(linemapFile)) {
+			for(String className : classFiles.keySet()) {
+				String key = keys.get(className);
+				Path sourceFile = sourceFile(key);
+				if(Files.notExists(sourceFile)) {
+					missing++;
+					continue;
+				}
+				
+				sources.putNextEntry(new ZipEntry(className + ".java"));
+				Files.copy(sourceFile, sources);
+				sources.closeEntry();
+				
+				Path linemapBlock = linemapFile(key);
+				if(Files.exists(linemapBlock)) Files.copy(linemapBlock, linemap);
+			}
+		}
+		
+		return missing;
+	}
+	
+	private Path sourceFile(String key) {
+		return cacheDir.resolve(key.substring(0, 2)).resolve(key + ".java");
+	}
+	
+	private Path linemapFile(String key) {
+		return cacheDir.resolve(key.substring(0, 2)).resolve(key + ".linemap");
+	}
+	
+	private static void writeAtomically(Path dest, byte[] contents) throws IOException {
+		Path tmp = AtomicFiles.tempSibling(dest);
+		try {
+			Files.write(tmp, contents);
+			AtomicFiles.publish(tmp, dest);
+		} finally {
+			Files.deleteIfExists(tmp);
+		}
+	}
+	
+	//"a/b/Outer$Inner$1" -> "a/b/Outer", if there is such a class (a dollar sign doesn't always mean an inner class)
+	private static String topLevel(String className, Set<String> allClasses) {
+		int slash = className.lastIndexOf('/');
+		for(int dollar = className.indexOf('$', slash + 1); dollar != -1; dollar = className.indexOf('$', dollar + 1)) {
+			String outer = className.substring(0, dollar);
+			if(allClasses.contains(outer)) return outer;
+		}
+		return className;
+	}
+	
+	private void collectComments(byte[] bytes, Set<String> comments) {
+		new ClassReader(bytes).accept(new ClassVisitor(Opcodes.ASM9) {
+			@Override
+			public FieldVisitor visitField(int access, String name, String descriptor, String signature, Object value) {
+				String comment = javadoc.getFieldComment(name);
+				if(comment != null) comments.add("field\t" + name + "\t" + comment + "\n");
+				return null;
+			}
+			
+			@Override
+			public MethodVisitor visitMethod(int access, String name, String descriptor, String signature, String[] exceptions) {
+				String comment = javadoc.getMethodComment(name);
+				if(comment != null) comments.add("method\t" + name + "\t" + comment + "\n");
+				return null;
+			}
+		}, ClassReader.SKIP_CODE | ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
+	}
+	
+	//see LineNumberRemapper for the format. each block starts with an untabbed line, whose first element is the class name
+	private static Map<String, String> readLinemapBlocks(Path linemap) throws IOException {
+		Map<String, String> blocks = new LinkedHashMap<>();
+		String className = null;
+		StringBuilder block = new StringBuilder();
+		
+		try(BufferedReader reader = Files.newBufferedReader(linemap, StandardCharsets.UTF_8)) {
+			String line;
+			while((line = reader.readLine()) != null) {
+				if(!line.isEmpty() && line.charAt(0) != '\t') {
+					if(className != null) blocks.put(className, block.toString());
+					className = line.split("\t")[0];
+					block.setLength(0);
+				}
+				block.append(line).append('\n');
+			}
+		}
+		if(className != null) blocks.put(className, block.toString());
+		
+		return blocks;
+	}
+}
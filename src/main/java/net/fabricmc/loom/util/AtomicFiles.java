@@ -0,0 +1,53 @@
+package net.fabricmc.loom.util;
+
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.UUID;
+
+/**
+ * For files in the user cache, which might be written by several Gradle daemons (or several threads) at once.
+ * Write to a {@code tempSibling} first, then {@code publish} it, and nobody will ever see a half-written file
+ * under the real name.
+ */
+public class AtomicFiles {
+	/**
+	 * A path next to {@code dest} that nothing else will try to write to. The file does not exist yet.
+	 */
+	public static Path tempSibling(Path dest) {
+		return dest.resolveSibling(dest.getFileName() + "." + UUID.randomUUID() + ".tmp");
+	}
+	
+	/**
+	 * Moves {@code tmp} to {@code dest}, atomically if the filesystem can do that. If {@code dest} already exists,
+	 * someone else finished first; assume they wrote the same thing and overwrite it.
+	 * <p>
+	 * Only for files. A directory can't be moved onto a non-empty one; use {@code publishDirectory} for those.
+	 */
+	public static void publish(Path tmp, Path dest) throws IOException {
+		try {
+			Files.move(tmp, dest, StandardCopyOption.ATOMIC_MOVE);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(tmp, dest, StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+	
+	/**
+	 * Like {@code publish}, but for a directory. If {@code dest} already exists, someone else finished first and it's
+	 * kept instead (directories can't be overwritten in one move); {@code tmp} is left for the caller to clean up.
+	 * 
+	 * @return {@code true} if {@code tmp} was moved into place, {@code false} if an existing {@code dest} was kept
+	 */
+	public static boolean publishDirectory(Path tmp, Path dest) throws IOException {
+		try {
+			publish(tmp, dest);
+			return true;
+		} catch (IOException e) {
+			//DirectoryNotEmptyException, FileAlreadyExistsException, or on Windows a plain AccessDeniedException
+			if(Files.isDirectory(dest)) return false;
+			throw e;
+		}
+	}
+}
@@ -0,0 +1,106 @@
+package net.fabricmc.loom.util;
+
+import org.gradle.api.logging.Logger;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassWriter;
+
+import java.io.IOException;
+import java.nio.file.FileSystem;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * tiny-remapper only needs the "shape" of the classes on its remap classpath: names, supertypes, and the names,
+ * descriptors and access flags of members. It doesn't need method bodies, debug info, or any non-class files, but it
+ * reads (and unzips) all of that anyway, for every classpath jar, every time a remapper is constructed.
+ * <p>
+ * So this makes a "skeleton" copy of each classpath jar with only the parts tiny-remapper looks at, cached in the
+ * user cache and keyed by the SHA-1 of the original jar. Building one costs about as much as one read of the original,
+ * and every later remap reads the much smaller skeleton instead. (Think Minecraft and its libraries getting read
+ * once per mod dependency, then again for reobf.)
+ * <p>
+ * Skeletons are only suitable for the classpath, not for remapper inputs, since the code is gone.
+ */
+public class ClasspathSkeletons {
+	public ClasspathSkeletons(Path skeletonDir, Logger log) {
+		this.skeletonDir = skeletonDir;
+		this.log = log;
+	}
+	
+	//bump if the skeleton format changes
+	private static final String FORMAT = "v1";
+	
+	private final Path skeletonDir;
+	private final Logger log;
+	
+	//so the same jar isn't hashed again when this is called once per mod dependency
+	private final Map<Path, Path> skeletonsByJar = new HashMap<>();
+	
+	public Set<Path> skeletonize(Collection<Path> classpath) throws IOException {
+		Set<Path> result = new LinkedHashSet<>();
+		for(Path path : classpath) result.add(skeletonize(path));
+		return result;
+	}
+	
+	public synchronized Path skeletonize(Path jar) throws IOException {
+		Path known = skeletonsByJar.get(jar);
+		if(known != null) return known;
+		
+		//directories and such can go through as-is
+		if(!Files.isRegularFile(jar)) return jar;
+		
+		Path skeleton = skeletonDir.resolve(Checksum.fileHexHash(jar, Checksum.SHA1.get()) + "-" + FORMAT + ".jar");
+		if(Files.notExists(skeleton)) {
+			log.info("\\-> Creating classpath skeleton of {} at {}", jar, skeleton);
+			Files.createDirectories(skeletonDir);
+			
+			//write somewhere else first, so a half-written skeleton never shows up under the real name
+			Path tmp = AtomicFiles.tempSibling(skeleton);
+			try {
+				write(jar, tmp);
+				
+				if(Files.notExists(tmp)) {
+					//zipfs doesn't write anything if there were no classes to put in the jar
+					skeletonsByJar.put(jar, jar);
+					return jar;
+				}
+				
+				AtomicFiles.publish(tmp, skeleton);
+			} finally {
+				Files.deleteIfExists(tmp);
+			}
+		}
+		
+		skeletonsByJar.put(jar, skeleton);
+		return skeleton;
+	}
+	
+	private static void write(Path jar, Path dest) throws IOException {
+		try(FileSystem srcFs = ZipUtil.openFs(jar); FileSystem dstFs = ZipUtil.createFs(dest)) {
+			Files.walkFileTree(srcFs.getPath("/"), new SimpleFileVisitor<Path>() {
+				@Override
+				public FileVisitResult visitFile(Path srcPath, BasicFileAttributes attrs) throws IOException {
+					if(!srcPath.toString().endsWith(".class")) return FileVisitResult.CONTINUE;
+					
+					ClassReader reader = new ClassReader(Files.readAllBytes(srcPath));
+					//Not ClassWriter(reader, 0): that would copy the Code attributes of methods right back in
+					ClassWriter writer = new ClassWriter(0);
+					reader.accept(writer, ClassReader.SKIP_CODE | ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
+					
+					Path dstPath = dstFs.getPath(srcPath.toString());
+					if(dstPath.getParent() != null) Files.createDirectories(dstPath.getParent());
+					Files.write(dstPath, writer.toByteArray());
+					return FileVisitResult.CONTINUE;
+				}
+			});
+		}
+	}
+}
@@ -0,0 +1,176 @@
+package net.fabricmc.loom.util;
+
+import org.gradle.api.logging.Logger;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Makes some files show up in a directory (like Forge libraries in a run directory's {@code lib} folder), doing as little
+ * work as possible when they're already there.
+ * <p>
+ * A manifest of what was put in the directory last time, as (relative path, size, modification time, SHA-1, and the
+ * modification time of the copy) is kept outside of it. A file is only copied (or linked) again when its source changed
+ * or the copy in the directory went missing or was changed, and a file that was put there last time but isn't wanted
+ * anymore is deleted. Files in the directory that didn't come from here are left alone.
+ */
+public class DirectorySync {
+	/**
+	 * @param targetDir   the directory to put files into
+	 * @param manifestDir somewhere to keep the manifest, such as a task's temporary directory; it's named after {@code targetDir}
+	 */
+	public DirectorySync(Path targetDir, Path manifestDir) {
+		this.targetDir = targetDir;
+		this.manifestFile = manifestDir.resolve("sync-" + Checksum.stringHexHash(targetDir.toAbsolutePath().toString(), Checksum.SHA1.get()) + ".txt");
+	}
+	
+	private final Path targetDir;
+	private final Path manifestFile;
+	private final Map<String, Path> wanted = new LinkedHashMap<>();
+	private boolean link = false;
+	
+	public DirectorySync put(String relativePath, Path source) {
+		wanted.put(relativePath, source);
+		return this;
+	}
+	
+	public DirectorySync putAll(Map<String, Path> relativePathsToSources) {
+		wanted.putAll(relativePathsToSources);
+		return this;
+	}
+	
+	/**
+	 * Use FileLinks instead of copying. Only for sources that are never modified in place, since the target would change too.
+	 */
+	public DirectorySync link(boolean link) {
+		this.link = link;
+		return this;
+	}
+	
+	/**
+	 * @return {@code true} if anything in the target directory was changed
+	 */
+	public boolean sync(Logger log) throws IOException {
+		Map<String, ManifestEntry> previous = readManifest();
+		Map<String, ManifestEntry> next = new LinkedHashMap<>();
+		int changed = 0, deleted = 0;
+		
+		for(Map.Entry<String, Path> entry : wanted.entrySet()) {
+			String relativePath = entry.getKey();
+			Path source = entry.getValue();
+			Path target = targetDir.resolve(relativePath);
+			
+			long size = Files.size(source);
+			long mtime = Files.getLastModifiedTime(source).toMillis();
+			ManifestEntry prev = previous.get(relativePath);
+			boolean targetIntact = prev != null && isIntact(target, prev);
+			
+			if(targetIntact && prev.size == size && prev.mtime == mtime) {
+				//nothing changed, don't even hash it
+				next.put(relativePath, new ManifestEntry(size, mtime, prev.sha1, targetMtime(target)));
+				continue;
+			}
+			
+			String sha1 = Checksum.fileHexHash(source, Checksum.SHA1.get());
+			if(targetIntact && prev.sha1.equals(sha1)) {
+				//touched, but the same contents
+				next.put(relativePath, new ManifestEntry(size, mtime, sha1, targetMtime(target)));
+				continue;
+			}
+			
+			log.info("\\-> Syncing {} to {}", source, target);
+			if(link) {
+				FileLinks.linkOrCopy(source, target);
+			} else {
+				if(target.getParent() != null) Files.createDirectories(target.getParent());
+				Files.copy(source, target, StandardCopyOption.REPLACE_EXISTING);
+			}
+			next.put(relativePath, new ManifestEntry(size, mtime, sha1, targetMtime(target)));
+			changed++;
+		}
+		
+		for(String relativePath : previous.keySet()) {
+			if(!wanted.containsKey(relativePath)) {
+				log.info("\\-> Deleting {}, it's not wanted anymore", targetDir.resolve(relativePath));
+				Files.deleteIfExists(targetDir.resolve(relativePath));
+				deleted++;
+			}
+		}
+		
+		if(!next.equals(previous)) writeManifest(next);
+		
+		if(changed != 0 || deleted != 0) log.lifecycle("|-> {}: {} files updated, {} deleted, {} unchanged", targetDir, changed, deleted, wanted.size() - changed);
+		return changed != 0 || deleted != 0;
+	}
+	
+	//Is the file we put at `target` last time still there, unchanged? The same size isn't enough; it could have been edited
+	//in place. If it was touched since, check the contents.
+	private static boolean isIntact(Path target, ManifestEntry prev) throws IOException {
+		if(Files.notExists(target) || Files.size(target) != prev.size) return false;
+		if(targetMtime(target) == prev.targetMtime) return true;
+		return Checksum.fileHexHash(target, Checksum.SHA1.get()).equals(prev.sha1);
+	}
+	
+	private static long targetMtime(Path target) throws IOException {
+		return Files.getLastModifiedTime(target).toMillis();
+	}
+	
+	private Map<String, ManifestEntry> readManifest() throws IOException {
+		Map<String, ManifestEntry> manifest = new HashMap<>();
+		if(Files.notExists(manifestFile)) return manifest;
+		
+		for(String line : Files.readAllLines(manifestFile, StandardCharsets.UTF_8)) {
+			String[] split = line.split("\t");
+			if(split.length != 5) return new HashMap<>(); //corrupt (or from an older version)? start over
+			try {
+				manifest.put(split[0], new ManifestEntry(Long.parseLong(split[1]), Long.parseLong(split[2]), split[3], Long.parseLong(split[4])));
+			} catch (NumberFormatException e) {
+				return new HashMap<>();
+			}
+		}
+		return manifest;
+	}
+	
+	private void writeManifest(Map<String, ManifestEntry> manifest) throws IOException {
+		List<String> lines = new ArrayList<>();
+		manifest.forEach((relativePath, entry) -> lines.add(relativePath + "\t" + entry.size + "\t" + entry.mtime + "\t" + entry.sha1 + "\t" + entry.targetMtime));
+		
+		Files.createDirectories(manifestFile.getParent());
+		Files.write(manifestFile, lines, StandardCharsets.UTF_8);
+	}
+	
+	private static class ManifestEntry {
+		ManifestEntry(long size, long mtime, String sha1, long targetMtime) {
+			this.size = size;
+			this.mtime = mtime;
+			this.sha1 = sha1;
+			this.targetMtime = targetMtime;
+		}
+		
+		final long size;
+		final long mtime;
+		final String sha1;
+		final long targetMtime;
+		
+		@Override
+		public boolean equals(Object o) {
+			if(this == o) return true;
+			if(o == null || getClass() != o.getClass()) return false;
+			ManifestEntry that = (ManifestEntry) o;
+			return size == that.size && mtime == that.mtime && sha1.equals(that.sha1) && targetMtime == that.targetMtime;
+		}
+		
+		@Override
+		public int hashCode() {
+			return sha1.hashCode();
+		}
+	}
+}
@@ -0,0 +1,155 @@
+package net.fabricmc.loom.util;
+
+import org.gradle.api.logging.Logger;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs a bunch of {@code DownloadSession}s at once, on a fixed number of worker threads. Downloads start as soon as
+ * they're added, so whoever's adding them (say, something reading a big index file) doesn't hold anything up.
+ * <p>
+ * Failed downloads are retried with exponential backoff. Every download is attempted even if some fail; the failures
+ * are reported together at the end. Progress is logged across all the workers, every 10%.
+ * <p>
+ * Connection reuse comes from {@code HttpURLConnection}'s keep-alive cache, which DownloadSession stays friendly with
+ * by always reading responses to the end. So the number of workers is also roughly the number of open connections.
+ */
+public class DownloadQueue {
+	public DownloadQueue(Logger log, int threads) {
+		this.log = log;
+		this.threads = Math.max(1, threads);
+	}
+	
+	private final Logger log;
+	private final int threads;
+	private int retries = 3;
+	private long initialBackoffMillis = 500;
+	
+	private ExecutorService exec;
+	private final AtomicInteger queued = new AtomicInteger();
+	private final AtomicInteger done = new AtomicInteger();
+	private final Progress progress = new Progress();
+	private final List<Exception> failures = Collections.synchronizedList(new ArrayList<>());
+	
+	/**
+	 * How many times to retry a failed download, and how long to wait before the first retry (doubling every time after).
+	 * Call this before adding anything.
+	 */
+	public DownloadQueue retries(int retries, long initialBackoffMillis) {
+		this.retries = retries;
+		this.initialBackoffMillis = initialBackoffMillis;
+		return this;
+	}
+	
+	/**
+	 * Starts the download right away, on one of the worker threads. Call {@code downloadAll} after adding everything.
+	 */
+	public synchronized DownloadQueue add(DownloadSession session) {
+		if(exec == null) {
+			exec = Executors.newFixedThreadPool(threads, r -> {
+				Thread t = new Thread(r, "Voldeloom download worker");
+				t.setDaemon(true);
+				return t;
+			});
+		}
+		
+		queued.incrementAndGet();
+		exec.execute(() -> {
+			try {
+				downloadWithRetries(session);
+			} catch (IOException | RuntimeException e) { //(offline mode is an IllegalStateException, for example)
+				failures.add(e);
+			} finally {
+				progress.tick(done.incrementAndGet());
+			}
+		});
+		return this;
+	}
+	
+	public int size() {
+		return queued.get();
+	}
+	
+	/**
+	 * Waits for every download that was added to finish.
+	 * @param what what's being downloaded, for log messages
+	 * @throws IOException if any of the downloads still failed after retrying
+	 */
+	public void downloadAll(String what) throws IOException {
+		if(exec == null) return;
+		
+		int total = queued.get();
+		log.lifecycle("|-> Downloading {} {} on {} thread{}...", total, what, threads, threads == 1 ? "" : "s");
+		progress.start(total, done.get());
+		
+		try {
+			exec.shutdown();
+			while(!exec.awaitTermination(1, TimeUnit.MINUTES)) {
+				log.info("|-> Still downloading {} ({}/{})...", what, done.get(), total);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while downloading " + what, e);
+		} finally {
+			exec.shutdownNow();
+		}
+		
+		if(!failures.isEmpty()) {
+			IOException ball = new IOException("Failed to download " + failures.size() + " of " + total + " " + what + " (first failure: " + failures.get(0).getMessage() + ")");
+			for(Exception failure : failures.subList(0, Math.min(failures.size(), 10))) ball.addSuppressed(failure);
+			throw ball;
+		}
+		
+		log.info("|-> Done!");
+	}
+	
+	private void downloadWithRetries(DownloadSession session) throws IOException {
+		for(int attempt = 0; ; attempt++) {
+			try {
+				session.download();
+				return;
+			} catch (IOException e) {
+				if(attempt >= retries) throw e;
+				
+				//exponential backoff, plus some jitter so all the workers don't hit the server again at the same moment
+				long backoff = (initialBackoffMillis << attempt) + ThreadLocalRandom.current().nextLong(initialBackoffMillis + 1);
+				log.info("\\-> {} (attempt {} of {}), retrying in {}ms", e.getMessage(), attempt + 1, retries + 1, backoff);
+				try {
+					Thread.sleep(backoff);
+				} catch (InterruptedException ie) {
+					Thread.currentThread().interrupt();
+					throw e;
+				}
+			}
+		}
+	}
+	
+	//The total isn't known until everything has been added, and downloads can finish before then
+	private class Progress {
+		private int total = -1;
+		private int nextLogPercent = 10;
+		
+		synchronized void start(int total, int done) {
+			this.total = total;
+			tick(done);
+		}
+		
+		synchronized void tick(int done) {
+			if(total <= 0) return;
+			
+			int percent = (int) (done * 100L / total);
+			if(percent >= nextLogPercent) {
+				log.lifecycle("\\-> {}%... ({}/{})", percent, done, total);
+				while(nextLogPercent <= percent) nextLogPercent += 10;
+			}
+		}
+	}
+}
@@ -2,17 +2,25 @@ package net.fabricmc.loom.util;
 
 import net.fabricmc.loom.LoomGradleExtension;
 import org.gradle.api.Project;
+import org.gradle.api.logging.Logger;
 import org.jetbrains.annotations.Nullable;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
 import java.time.Instant;
 import java.time.temporal.TemporalAmount;
 import java.util.zip.GZIPInputStream;
@@ -22,11 +30,15 @@ import java.util.zip.GZIPInputStream;
  * 
  * (Very largely based off of Loom's old DownloadUtil, but it's more builder-flavored now.
  * Also allows to turn off gzip support because java's gzipinputstream is a bit funky x))
+ * 
+ * Files are downloaded to a {@code .part} file next to the destination, and copied into place once they're complete.
+ * The {@code .part} file is locked while that happens, so two sessions (or two Gradle daemons) never write to it at once.
+ * If the connection drops, the download is resumed from the end of the {@code .part} file with a {@code Range} request,
+ * and if an {@code expectSha1} was given the {@code .part} file is also kept around for the next build to resume.
  */
 public class DownloadSession {
 	public DownloadSession(Project project) {
-		this.project = project;
-		this.extension = project.getExtensions().getByType(LoomGradleExtension.class);
+		this(project.getLogger(), project.getExtensions().getByType(LoomGradleExtension.class));
 	}
 	
 	public DownloadSession(String url, Project project) {
@@ -34,8 +46,24 @@ public class DownloadSession {
 		url(url);
 	}
 	
-	private final Project project;
-	private final LoomGradleExtension extension;
+	private DownloadSession(Logger log, LoomGradleExtension extension) {
+		this(log, extension.offline, extension.refreshDependencies);
+		revalidateAfter(extension.revalidateAfter);
+	}
+	
+	//doesn't need a Project, so it can be pointed at a local test server
+	public DownloadSession(Logger log, boolean offline, boolean refreshDependencies) {
+		this.log = log;
+		this.offline = offline;
+		this.refreshDependencies = refreshDependencies;
+	}
+	
+	private final Logger log;
+	private final boolean offline;
+	private final boolean refreshDependencies;
+	
+	//how many times to pick a download back up (with a Range request) after the connection drops, within one download() call
+	private static final int MAX_RESUMES = 5;
 	
 	private URL url;
 	private Path dest;
@@ -44,12 +72,20 @@ public class DownloadSession {
 	//Send an Accept-Encoding: gzip header and decompress the file on the client
 	private boolean requestGzip = true;
 	
+	//If set, the downloaded file is hashed once complete (before being moved into place) and rejected if it doesn't match
+	private @Nullable String expectSha1 = null;
+	private long expectSize = -1;
+	
 	private boolean skipIfExists = false;
 	private @Nullable String skipIfSha1 = null;
 	private @Nullable TemporalAmount skipIfNewerThan = null;
+	//Global policy from the extension: don't ask the server about a file checked less than this long ago
+	private @Nullable Duration revalidateAfter = null;
 	
 	private boolean quiet;
 	
+	private @Nullable String receivedEtag;
+	
 	public DownloadSession url(String url) {
 		try {
 			this.url = new URL(url);
@@ -74,6 +110,17 @@ public class DownloadSession {
 		return this;
 	}
 	
+	public DownloadSession expectSha1(@Nullable String expectSha1) {
+		this.expectSha1 = expectSha1;
+		return this;
+	}
+	
+	//only checked alongside expectSha1; a cheaper way to find out the file is wrong
+	public DownloadSession expectSize(long expectSize) {
+		this.expectSize = expectSize;
+		return this;
+	}
+	
 	public DownloadSession skipIfExists() {
 		this.skipIfExists = true;
 		return this;
@@ -89,6 +136,11 @@ public class DownloadSession {
 		return this;
 	}
 	
+	public DownloadSession revalidateAfter(@Nullable Duration revalidateAfter) {
+		this.revalidateAfter = revalidateAfter;
+		return this;
+	}
+	
 	public DownloadSession quiet() {
 		this.quiet = true;
 		return this;
@@ -101,7 +153,7 @@ public class DownloadSession {
 		boolean destExists = Files.exists(dest);
 		
 		//If we're offline, assume the file is up-to-date enough; and if we don't have the file, there's no way to get it.
-		if(extension.offline) {
+		if(offline) {
 			if(destExists) {
 				info("Not connecting to {} because {} exists and we're in offline mode.", url, dest);
 				return dest;
@@ -109,7 +161,7 @@ public class DownloadSession {
 		}
 		
 		//More fine-grained up-to-dateness checks that we skip in refreshDependencies mode.
-		if(destExists && !extension.refreshDependencies) {
+		if(destExists && !refreshDependencies) {
 			if(skipIfExists) {
 				info("Not connecting to {} because {} exists.", url, dest);
 				return dest;
@@ -122,61 +174,280 @@ public class DownloadSession {
 				info("Not connecting to {} because {} exists and was downloaded within {}.", url, dest, skipIfNewerThan);
 				return dest;
 			}
+			
+			//Files pinned to a hash can't go stale, so once the file on disk has that hash there's nothing to ask the server.
+			if(expectSha1 != null && Checksum.compareFileHexHash(dest, expectSha1, Checksum.SHA1.get())) {
+				info("Not connecting to {} because {} exists and has the expected SHA-1 hash ({}).", url, dest, expectSha1);
+				return dest;
+			}
+			
+			if(revalidateAfter != null) {
+				Instant lastValidated = lastValidated();
+				if(lastValidated.isAfter(Instant.now().minus(revalidateAfter))) {
+					info("Not connecting to {} because {} was last checked at {}, within the revalidation period of {}.", url, dest, lastValidated, revalidateAfter);
+					return dest;
+				}
+			}
 		}
 		
-		HttpURLConnection conn = (HttpURLConnection) url.openConnection(); //doesnt actually open html connection yet
-		
-		//Read the locally known etag, if one exists, and set the etag header.
-		String knownEtag = null;
-		Path etagFile = dest.resolveSibling(dest.getFileName().toString() + ".etag");
-		if(useEtag && destExists && Files.exists(etagFile) && !extension.refreshDependencies) {
-			knownEtag = new String(Files.readAllBytes(etagFile), StandardCharsets.UTF_8);
-			conn.setRequestProperty("If-None-Match", knownEtag);
-			conn.setIfModifiedSince(Files.getLastModifiedTime(dest).toMillis());
+		//Download into a .part file next to dest, and only publish it once it's complete (and has the right hash).
+		//If the connection drops halfway through, the next attempt picks up where it left off with a Range request.
+		Files.createDirectories(dest.getParent());
+		Path part = dest.resolveSibling(dest.getFileName().toString() + ".part");
+		FileTime destModified = destExists ? Files.getLastModifiedTime(dest) : null;
+		boolean notModified = false, ownPart = false, downloaded = false;
+		try(FileChannel partChannel = FileChannel.open(part, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			FileLock partLock;
+			try {
+				partLock = partChannel.tryLock();
+			} catch (OverlappingFileLockException e) {
+				partLock = null;
+			}
+			
+			if(partLock == null) {
+				//someone else (another thread, or another Gradle daemon) is already downloading this file.
+				//don't step on their .part file; do a plain, non-resumable download on the side instead
+				info("{} is locked, downloading to a temporary file instead.", part);
+				Path tmp = AtomicFiles.tempSibling(dest);
+				try(FileChannel tmpChannel = FileChannel.open(tmp, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+					downloadInto(tmpChannel, false);
+				} catch (IOException | RuntimeException e) {
+					Files.deleteIfExists(tmp);
+					throw e;
+				}
+				verifyAndPublish(tmp);
+				return dest;
+			}
+			
+			ownPart = true;
+			
+			//Whoever had the lock before us publishes dest before letting go of it, so if dest changed since we started,
+			//someone else just finished downloading it.
+			if(Files.exists(dest) && !Files.getLastModifiedTime(dest).equals(destModified)) {
+				info("Not downloading {} because {} was just downloaded by someone else.", url, dest);
+			} else {
+				//Only resume a .part file left over from an earlier build when there's a hash to check the result against;
+				//otherwise there's no telling whether the file changed on the server in the meantime.
+				if(refreshDependencies || expectSha1 == null) partChannel.truncate(0);
+				
+				notModified = !downloadInto(partChannel, destExists);
+				downloaded = true;
+				
+				//Still holding the lock, so nobody can start writing to the .part file before it's safely in dest.
+				if(!notModified) publishLocked(partChannel);
+			}
+		} catch (IOException | RuntimeException e) {
+			//Without a hash it can't be resumed later (see above), and a complete one that didn't check out is no good either
+			if(ownPart && (expectSha1 == null || downloaded)) Files.deleteIfExists(part);
+			throw e;
 		}
 		
-		//Request a gzip header, if compression was requested.
-		if(requestGzip) conn.setRequestProperty("Accept-Encoding", "gzip");
-		
-		//Actually connect.
-		lifecycle("Establishing connection to {} (sending etag header: {}, gzip encoding: {})...", url, knownEtag != null, requestGzip);
-		conn.connect();
-		
-		//We'll take a 304, or something in the OK section.
-		int code = conn.getResponseCode();
-		if(code == HttpURLConnection.HTTP_NOT_MODIFIED) {
-			lifecycle("\\-> Not Modified (etag match)"); //The server *shouldn't* send a 304 if we didn't send an etag?
-			return dest;
-		} else if(code / 100 != 2) {
-			throw new IOException("Got " + code + " " + conn.getResponseMessage() + " from connection to " + url);
+		//(after closing the channel; open files can't be deleted on Windows)
+		Files.deleteIfExists(part);
+		if(notModified) {
+			//remember that the server just vouched for the file, for revalidateAfter
+			if(Files.exists(etagFile())) Files.setLastModifiedTime(etagFile(), FileTime.from(Instant.now()));
 		}
-		
-		//Download the entire file and save it to disk.
-		lifecycle("\\-> Saving to {} ", dest);
-		Files.createDirectories(dest.getParent());
-		try(InputStream in = "gzip".equals(conn.getContentEncoding()) ? new GZIPInputStream(conn.getInputStream()) : conn.getInputStream()) {
-			Files.copy(in, dest, StandardCopyOption.REPLACE_EXISTING);
-		} catch (IOException e) {
-			//don't keep a half-downloaded file, if we can
-			try { Files.deleteIfExists(dest); } catch (Exception ignored) {}
-			throw e;
+		return dest;
+	}
+	
+	//Copies the locked .part file out through its own channel, then verifies and publishes the copy. (Not moved, and not
+	//read through a fresh handle, because on Windows neither works on a file that's open and locked.)
+	private void publishLocked(FileChannel partChannel) throws IOException {
+		Path tmp = AtomicFiles.tempSibling(dest);
+		try {
+			try(FileChannel tmpChannel = FileChannel.open(tmp, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+				long size = partChannel.size();
+				for(long pos = 0; pos < size; ) pos += partChannel.transferTo(pos, size - pos, tmpChannel);
+			}
+			verifyAndPublish(tmp);
+		} finally {
+			Files.deleteIfExists(tmp);
 		}
+	}
+	
+	/**
+	 * Downloads the file into {@code out}, resuming with a Range request if it already contains some bytes, or if the
+	 * connection drops partway through.
+	 * @return {@code false} if the server said the existing {@code dest} is not modified, {@code true} if the file was downloaded
+	 */
+	private boolean downloadInto(FileChannel out, boolean destExists) throws IOException {
+		//ETag or Last-Modified from the first response, so a resumed request can make sure it's still the same file (If-Range)
+		String validator = null;
 		
-		//Save the etag to disk too, if one was sent alongside the file.
-		String srvEtag = conn.getHeaderField("ETag");
-		if(useEtag && srvEtag != null) {
-			info("\\-> Saving etag to {} ", etagFile);
-			Files.write(etagFile, srvEtag.getBytes(StandardCharsets.UTF_8));
+		for(int attempt = 0; ; attempt++) {
+			long have = out.size();
+			boolean resuming = have > 0;
+			
+			HttpURLConnection conn = (HttpURLConnection) url.openConnection(); //doesnt actually open html connection yet
+			//so a stalled connection turns into an IOException (which DownloadQueue can retry) instead of a hang
+			conn.setConnectTimeout(30_000);
+			conn.setReadTimeout(30_000);
+			
+			String knownEtag = null;
+			Path etagFile = etagFile();
+			if(resuming) {
+				//Byte ranges are counted in the encoded representation, so don't ask for gzip when resuming.
+				conn.setRequestProperty("Range", "bytes=" + have + "-");
+				if(validator != null) conn.setRequestProperty("If-Range", validator);
+			} else {
+				//Read the locally known etag, if one exists, and set the etag header.
+				if(useEtag && destExists && Files.exists(etagFile) && !refreshDependencies) {
+					knownEtag = new String(Files.readAllBytes(etagFile), StandardCharsets.UTF_8);
+					conn.setRequestProperty("If-None-Match", knownEtag);
+					conn.setIfModifiedSince(Files.getLastModifiedTime(dest).toMillis());
+				}
+				
+				//Request a gzip header, if compression was requested.
+				if(requestGzip) conn.setRequestProperty("Accept-Encoding", "gzip");
+			}
+			
+			//Actually connect.
+			if(resuming) lifecycle("Resuming download of {} from byte {}...", url, have);
+			else lifecycle("Establishing connection to {} (sending etag header: {}, gzip encoding: {})...", url, knownEtag != null, requestGzip);
+			conn.connect();
+			
+			//We'll take a 304, or something in the OK section.
+			int code = conn.getResponseCode();
+			if(code == HttpURLConnection.HTTP_NOT_MODIFIED && !resuming) {
+				lifecycle("\\-> Not Modified (etag match)"); //The server *shouldn't* send a 304 if we didn't send an etag?
+				return false;
+			} else if(code == 416 && resuming) {
+				//Range Not Satisfiable; the .part file is probably from a different version of the file. Start over
+				drainErrorStream(conn);
+				lifecycle("\\-> Server can't resume from byte {}, starting over", have);
+				out.truncate(0);
+				continue;
+			} else if(code / 100 != 2) {
+				drainErrorStream(conn);
+				throw new IOException("Got " + code + " " + conn.getResponseMessage() + " from connection to " + url);
+			}
+			
+			//A 206 continues the .part file, but only if it starts where the .part file ends. Anything else (a 200, because
+			//the server doesn't do ranges or the If-Range validator didn't match) is the whole file from the start.
+			if(!(code == HttpURLConnection.HTTP_PARTIAL && contentRangeStartsAt(conn, have))) {
+				if(resuming) lifecycle("\\-> Server sent the whole file, starting over");
+				out.truncate(0);
+			}
+			if(validator == null) validator = conn.getHeaderField("ETag");
+			if(validator == null) validator = conn.getHeaderField("Last-Modified");
+			
+			//Download the file and save it to disk.
+			if(!resuming) lifecycle("\\-> Saving to {} ", dest);
+			long before = out.size();
+			out.position(before);
+			boolean gzipped = "gzip".equals(conn.getContentEncoding());
+			long expectedEnd = gzipped ? -1 : expectedEnd(conn, before);
+			try(InputStream in = gzipped ? new GZIPInputStream(conn.getInputStream()) : conn.getInputStream()) {
+				OutputStream outStream = Channels.newOutputStream(out); //not closed, that would close the channel
+				byte[] buf = new byte[65536];
+				int read;
+				while((read = in.read(buf)) != -1) outStream.write(buf, 0, read);
+			} catch (IOException e) {
+				//Made some progress? Pick up from there. (If not, DownloadQueue's retries, with backoff, are a better idea.)
+				long now = out.size();
+				if(now > before && attempt < MAX_RESUMES) {
+					info("\\-> Connection dropped after {} bytes ({}), resuming", now, e.getMessage());
+					//Range requests count bytes of the gzipped body, which we don't have, so that has to start over
+					if(gzipped) out.truncate(0);
+					continue;
+				}
+				throw e;
+			}
+			
+			//HttpURLConnection doesn't always throw when the server hangs up early; sometimes the stream just ends.
+			long now = out.size();
+			if(expectedEnd != -1 && now < expectedEnd) {
+				if(attempt < MAX_RESUMES) {
+					info("\\-> Connection dropped after {} of {} bytes, resuming", now, expectedEnd);
+					continue;
+				}
+				//(not deleting the .part here; if it can be resumed later, download() keeps it around)
+				throw new IOException("Connection to " + url + " kept dropping, only got " + now + " of " + expectedEnd + " bytes");
+			}
+			
+			receivedEtag = conn.getHeaderField("ETag");
+			return true;
+		}
+	}
+	
+	private void verifyAndPublish(Path downloaded) throws IOException {
+		try {
+			if(expectSha1 != null) {
+				if(expectSize >= 0 && Files.size(downloaded) != expectSize) {
+					throw new IOException("Downloaded " + url + ", but it was " + Files.size(downloaded) + " bytes long instead of " + expectSize);
+				}
+				
+				String actualSha1 = Checksum.fileHexHash(downloaded, Checksum.SHA1.get());
+				if(!actualSha1.equalsIgnoreCase(expectSha1)) {
+					throw new IOException("Downloaded " + url + ", but its SHA-1 hash was " + actualSha1 + " instead of " + expectSha1);
+				}
+			}
+			
+			AtomicFiles.publish(downloaded, dest);
+			
+			//Save the etag to disk too, if one was sent alongside the file. (Not any earlier, or a failed download would
+			//leave behind an etag that doesn't go with the file in dest.)
+			if(useEtag && receivedEtag != null) {
+				info("\\-> Saving etag to {} ", etagFile());
+				Files.write(etagFile(), receivedEtag.getBytes(StandardCharsets.UTF_8));
+			}
+		} finally {
+			Files.deleteIfExists(downloaded);
+		}
+	}
+	
+	//When the server last confirmed dest is up to date: when it was downloaded, or the last 304 (which touches the etag file)
+	private Instant lastValidated() throws IOException {
+		Instant downloaded = Files.getLastModifiedTime(dest).toInstant();
+		Path etagFile = etagFile();
+		if(Files.exists(etagFile)) {
+			Instant notModified = Files.getLastModifiedTime(etagFile).toInstant();
+			if(notModified.isAfter(downloaded)) return notModified;
+		}
+		return downloaded;
+	}
+	
+	private Path etagFile() {
+		return dest.resolveSibling(dest.getFileName().toString() + ".etag");
+	}
+	
+	//How long the file should be once this response's body is written at `start`, or -1 if the server didn't say.
+	private static long expectedEnd(HttpURLConnection conn, long start) throws IOException {
+		if(conn.getResponseCode() == HttpURLConnection.HTTP_PARTIAL) {
+			//"bytes 1000-1999/2000" -> 2000
+			String contentRange = conn.getHeaderField("Content-Range");
+			int dash = contentRange == null ? -1 : contentRange.indexOf('-');
+			int slash = contentRange == null ? -1 : contentRange.indexOf('/');
+			if(dash != -1 && slash > dash) {
+				try {
+					return Long.parseLong(contentRange.substring(dash + 1, slash).trim()) + 1;
+				} catch (NumberFormatException ignored) {}
+			}
 		}
 		
-		return dest;
+		long contentLength = conn.getContentLengthLong();
+		return contentLength < 0 ? -1 : start + contentLength;
+	}
+	
+	private static boolean contentRangeStartsAt(HttpURLConnection conn, long start) {
+		//"bytes 1000-1999/2000"
+		String contentRange = conn.getHeaderField("Content-Range");
+		return contentRange != null && contentRange.trim().startsWith("bytes " + start + "-");
+	}
+	
+	private static void drainErrorStream(HttpURLConnection conn) {
+		//read out the error body, otherwise the connection can't go back into the JDK's keep-alive cache for reuse
+		try(InputStream err = conn.getErrorStream()) {
+			if(err != null) ZipUtil.readFully(err);
+		} catch (IOException ignored) {}
 	}
 	
 	private void info(String x, Object... fmt) {
-		if(!quiet) project.getLogger().info(x, fmt);
+		if(!quiet) log.info(x, fmt);
 	}
 	
 	private void lifecycle(String x, Object... fmt) {
-		if(!quiet) project.getLogger().lifecycle(x, fmt);
+		if(!quiet) log.lifecycle(x, fmt);
 	}
 }
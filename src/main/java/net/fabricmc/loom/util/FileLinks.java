@@ -0,0 +1,44 @@
+package net.fabricmc.loom.util;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * For putting the same file in a bunch of places (like Minecraft's assets, which every legacy asset index and every
+ * run directory wants its own copy of) without actually copying it.
+ * <p>
+ * Hardlinks are preferred: they're as good as a real copy to everything reading them, and deleting the original doesn't
+ * break them. If that doesn't work (different drives, a filesystem that can't do it), a symlink is tried; and if that
+ * doesn't work either (Windows without developer mode, say), it's copied after all.
+ * <p>
+ * The catch with links is that writing to one writes to all of them, so only link files nobody's going to modify in place.
+ */
+public class FileLinks {
+	public enum Kind { ALREADY_LINKED, HARDLINK, SYMLINK, COPY }
+	
+	/**
+	 * Makes {@code link} have the same contents as {@code original}, which must exist. Any existing file at {@code link}
+	 * is replaced, unless it's already a link to {@code original}.
+	 */
+	public static Kind linkOrCopy(Path original, Path link) throws IOException {
+		if(Files.exists(link) && Files.isSameFile(original, link)) return Kind.ALREADY_LINKED;
+		
+		if(link.getParent() != null) Files.createDirectories(link.getParent());
+		Files.deleteIfExists(link);
+		
+		try {
+			Files.createLink(link, original);
+			return Kind.HARDLINK;
+		} catch (IOException | UnsupportedOperationException | SecurityException noHardlink) {
+			try {
+				Files.createSymbolicLink(link, original.toAbsolutePath());
+				return Kind.SYMLINK;
+			} catch (IOException | UnsupportedOperationException | SecurityException noSymlink) {
+				Files.copy(original, link, StandardCopyOption.REPLACE_EXISTING);
+				return Kind.COPY;
+			}
+		}
+	}
+}
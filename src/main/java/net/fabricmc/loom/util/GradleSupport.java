@@ -27,6 +27,7 @@ package net.fabricmc.loom.util;
 import org.gradle.api.Action;
 import org.gradle.api.JavaVersion;
 import org.gradle.api.Project;
+import org.gradle.api.Task;
 import org.gradle.api.artifacts.Configuration;
 import org.gradle.api.artifacts.ConfigurationContainer;
 import org.gradle.api.artifacts.repositories.ArtifactRepository;
@@ -55,27 +56,31 @@ import java.util.Set;
 	"RedundantSuppression" //And when it's woring against Gradle 7, it got stabilized :)
 })
 public class GradleSupport {
-	public static String compileOrImplementation;
-	public static String runtimeOrRuntimeOnly;
-	
 	//(VOLDELOOM-DISASTER) Gradle 7 decided to rename "compile" to "implementation" and "runtime" to "runtimeOnly".
 	//They're basically the same thing, so we can just swap out the names as-appropriate.
+	//These used to be stashed in static fields by an init method, but static state outlives the build when the daemon
+	//is reused (and configuration caching hates it), so just look again every time. It's only a set lookup.
 	public static void init(Project project) {
-		Set<String> names = project.getConfigurations().getNames();
-		
-		if(names.contains("compile")) compileOrImplementation = "compile";
-		else if(names.contains("implementation")) compileOrImplementation = "implementation";
+		ConfigurationContainer configurations = project.getConfigurations();
+		project.getLogger().info("We're on a '{}'-flavored Gradle; slight aftertaste of {}'.", getCompileOrImplementationName(configurations), getRuntimeOrRuntimeOnlyName(configurations));
+	}
+	
+	public static String getCompileOrImplementationName(ConfigurationContainer configurations) {
+		Set<String> names = configurations.getNames();
+		if(names.contains("compile")) return "compile";
+		else if(names.contains("implementation")) return "implementation";
 		else throw new IllegalStateException("Not sure what the name of the compilation configuration is (apparently not `compile` or `implementation`)");
-		
-		if(names.contains("runtime")) runtimeOrRuntimeOnly = "runtime";
-		else if(names.contains("runtimeOnly")) runtimeOrRuntimeOnly = "runtimeOnly";
+	}
+	
+	public static String getRuntimeOrRuntimeOnlyName(ConfigurationContainer configurations) {
+		Set<String> names = configurations.getNames();
+		if(names.contains("runtime")) return "runtime";
+		else if(names.contains("runtimeOnly")) return "runtimeOnly";
 		else throw new IllegalStateException("Not sure what the name of the runtime-only configuration is (apparently not `runtime` or `runtimeOnly`)");
-		
-		project.getLogger().info("We're on a '{}'-flavored Gradle; slight aftertaste of {}'.", compileOrImplementation, runtimeOrRuntimeOnly);
 	}
 	
 	public static Configuration getCompileOrImplementationConfiguration(ConfigurationContainer configurations) {
-		return configurations.getByName(compileOrImplementation);
+		return configurations.getByName(getCompileOrImplementationName(configurations));
 	}
 	
 	public static RegularFileProperty getRegularFileProperty(Project project) {
@@ -145,6 +150,18 @@ public class GradleSupport {
 		}
 	}
 	
+	//(VOLDELOOM-DISASTER) The configuration cache (Gradle 6.6+) doesn't allow tasks to touch the Project while they run,
+	//and ours do, because there's no other way to fork a JVM or find the extension in the Gradle 4 api we compile against.
+	//Saying so up front (Gradle 7.4+) makes Gradle skip caching for the build instead of failing it.
+	public static void markNotCompatibleWithConfigurationCache(Task task, String reason) {
+		try {
+			getAccessibleMethod(task.getClass(), "notCompatibleWithConfigurationCache", String.class)
+				.invoke(task, reason);
+		} catch (ReflectiveOperationException e) {
+			//Expected before Gradle 7.4, where there's either no configuration cache or nothing to tell it.
+		}
+	}
+	
 	@SuppressWarnings("unchecked")
 	public static void setClassifier(AbstractArchiveTask task, String classifier) {
 		try {
@@ -128,7 +128,7 @@ public class LineNumberRemapper {
 						//we have a line-number remap table for this class, perform a line remap.
 						try(InputStream srcReader = new BufferedInputStream((Files.newInputStream(srcPath)))) {
 							ClassReader srcClassReader = new ClassReader(srcReader);
-							ClassWriter dstClassWriter = new ClassWriter(0);
+							ClassWriter dstClassWriter = new ClassWriter(srcClassReader, 0); //copy the constant pool
 							
 							srcClassReader.accept(new LineNumberVisitor(dstClassWriter, table), 0);
 							
@@ -23,11 +23,17 @@ public interface LoomTaskExt extends Task {
 	
 	//merged from ForkingJavaExecTask in loom 1
 	default ExecResult forkedJavaexec(Action<? super JavaExecSpec> action) {
-		//compute the classpath of the current buildscript
+		return forkedJavaexec(forkedJavaexecClasspath(), action);
+	}
+	
+	//the classpath of the current buildscript. resolve it up front (getFiles) if forking from several threads at once
+	default FileCollection forkedJavaexecClasspath() {
 		ConfigurationContainer configurations = getProject().getBuildscript().getConfigurations();
 		DependencyHandler handler = getProject().getDependencies();
-		FileCollection classpath = configurations.getByName("classpath").plus(configurations.detachedConfiguration(handler.localGroovy()));
-		
+		return configurations.getByName("classpath").plus(configurations.detachedConfiguration(handler.localGroovy()));
+	}
+	
+	default ExecResult forkedJavaexec(FileCollection classpath, Action<? super JavaExecSpec> action) {
 		return getProject().javaexec(spec -> {
 			spec.classpath(classpath);
 			action.execute(spec);
@@ -34,6 +34,10 @@ public class Props {
 		return properties.containsKey(prop);
 	}
 	
+	public String get(String prop) {
+		return properties.get(prop);
+	}
+	
 	public Props remove(String prop) {
 		properties.remove(prop);
 		return this;
@@ -1,5 +1,6 @@
 package net.fabricmc.loom.util;
 
+import java.io.BufferedInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
@@ -13,6 +14,9 @@ import java.nio.file.SimpleFileVisitor;
 import java.nio.file.StandardCopyOption;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.util.Collections;
+import java.util.function.Predicate;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
 
 /**
  * Various bits of random crap for dealing with zip files.
@@ -70,6 +74,30 @@ public class ZipUtil {
 		}
 	}
 	
+	/**
+	 * Extracts a ZIP file into {@code destRoot} by streaming through it once with a ZipInputStream, instead of opening
+	 * a zip filesystem and walking it. Entries whose name fails {@code entryFilter} are skipped.
+	 */
+	public static void unpackStreaming(Path inZip, Path destRoot, Predicate<String> entryFilter) throws IOException {
+		Path normalizedRoot = destRoot.toAbsolutePath().normalize();
+		try(ZipInputStream zip = new ZipInputStream(new BufferedInputStream(Files.newInputStream(inZip)))) {
+			ZipEntry entry;
+			while((entry = zip.getNextEntry()) != null) {
+				if(!entryFilter.test(entry.getName())) continue;
+				
+				Path dest = normalizedRoot.resolve(entry.getName()).normalize();
+				if(!dest.startsWith(normalizedRoot)) throw new IOException("Zip entry " + entry.getName() + " in " + inZip + " tries to escape the destination directory");
+				
+				if(entry.isDirectory()) {
+					Files.createDirectories(dest);
+				} else {
+					if(dest.getParent() != null) Files.createDirectories(dest.getParent());
+					Files.copy(zip, dest, StandardCopyOption.REPLACE_EXISTING);
+				}
+			}
+		}
+	}
+	
 	/**
 	 * Starts as {@code resolveRoot}, and resolves each segment of {@code in} against it, even if {@code in} is on a separate filesystem.
 	 * 
@@ -200,7 +200,7 @@ public class JarMergerCooler implements AutoCloseable {
 				if (isMinecraft && isClass) {
 					byte[] data = result.data;
 					ClassReader reader = new ClassReader(data);
-					ClassWriter writer = new ClassWriter(0);
+					ClassWriter writer = new ClassWriter(reader, 0); //SidedClassVisitor doesn't touch methods, so ASM can copy them verbatim
 					ClassVisitor visitor = writer;
 					
 					if (side != null) {
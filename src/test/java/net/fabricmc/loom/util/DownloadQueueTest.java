@@ -0,0 +1,132 @@
+package net.fabricmc.loom.util;
+
+import net.fabricmc.loom.util.DownloadSessionTest.DroppingServer;
+import org.gradle.api.logging.Logger;
+import org.gradle.api.logging.Logging;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+public class DownloadQueueTest {
+	private Path dir;
+	private byte[] body;
+	
+	@Before
+	public void setup() throws IOException {
+		dir = Files.createTempDirectory("voldeloom-queue-test");
+		
+		body = new byte[50_000];
+		new Random(5678).nextBytes(body);
+	}
+	
+	@After
+	public void cleanup() throws IOException {
+		try(Stream<Path> walk = Files.walk(dir)) {
+			walk.sorted(Collections.reverseOrder()).forEach(p -> p.toFile().delete());
+		}
+	}
+	
+	private DownloadSession session(DroppingServer server, Path dest) {
+		return new DownloadSession(Logging.getLogger(DownloadQueueTest.class), false, false)
+			.url(server.url())
+			.dest(dest)
+			.gzip(false)
+			.quiet()
+			.expectSha1(DownloadSessionTest.sha1(body));
+	}
+	
+	@Test
+	public void retriesUntilTheServerComesBack() throws Exception {
+		Path dest = dir.resolve("file.bin");
+		
+		try(DroppingServer server = new DroppingServer(body, -1, 0).failFirst(2)) {
+			DownloadQueue queue = new DownloadQueue(Logging.getLogger(DownloadQueueTest.class), 2).retries(3, 1);
+			queue.add(session(server, dest));
+			queue.downloadAll("files");
+			
+			assertArrayEquals(body, Files.readAllBytes(dest));
+			assertEquals(3, server.ranges.size());
+		}
+	}
+	
+	@Test
+	public void givesUpAfterTheLastRetry() throws Exception {
+		Path dest = dir.resolve("file.bin");
+		
+		try(DroppingServer server = new DroppingServer(body, -1, 0).failFirst(Integer.MAX_VALUE)) {
+			DownloadQueue queue = new DownloadQueue(Logging.getLogger(DownloadQueueTest.class), 2).retries(2, 1);
+			queue.add(session(server, dest));
+			
+			IOException e = assertThrows(IOException.class, () -> queue.downloadAll("files"));
+			assertTrue(e.getMessage(), e.getMessage().contains("503"));
+			assertEquals(3, server.ranges.size());
+			assertFalse(Files.exists(dest));
+		}
+	}
+	
+	@Test
+	public void downloadsEverythingElseAndReportsFailuresTogether() throws Exception {
+		try(DroppingServer good = new DroppingServer(body, -1, 0); DroppingServer bad = new DroppingServer(body, -1, 0).failFirst(Integer.MAX_VALUE)) {
+			DownloadQueue queue = new DownloadQueue(Logging.getLogger(DownloadQueueTest.class), 3).retries(1, 1);
+			for(int i = 0; i < 5; i++) queue.add(session(good, dir.resolve("good" + i + ".bin")));
+			for(int i = 0; i < 2; i++) queue.add(session(bad, dir.resolve("bad" + i + ".bin")));
+			
+			IOException e = assertThrows(IOException.class, () -> queue.downloadAll("files"));
+			assertTrue(e.getMessage(), e.getMessage().startsWith("Failed to download 2 of 7 files"));
+			assertEquals(2, e.getSuppressed().length);
+			
+			for(int i = 0; i < 5; i++) assertArrayEquals(body, Files.readAllBytes(dir.resolve("good" + i + ".bin")));
+		}
+	}
+	
+	@Test
+	public void logsProgressAcrossWorkers() throws Exception {
+		List<String> lifecycle = Collections.synchronizedList(new ArrayList<>());
+		Logger log = recordingLogger(lifecycle);
+		
+		try(DroppingServer server = new DroppingServer(body, -1, 0)) {
+			DownloadQueue queue = new DownloadQueue(log, 4);
+			for(int i = 0; i < 20; i++) queue.add(session(server, dir.resolve("file" + i + ".bin")));
+			queue.downloadAll("files");
+		}
+		
+		assertEquals("|-> Downloading 20 files on 4 threads...", lifecycle.get(0));
+		assertEquals("\\-> 100%... (20/20)", lifecycle.get(lifecycle.size() - 1));
+		//every 10% at most once, no matter which worker finished what
+		assertEquals(lifecycle.toString(), lifecycle.size(), lifecycle.stream().distinct().count());
+		assertTrue(lifecycle.toString(), lifecycle.size() <= 11);
+	}
+	
+	//Keeps lifecycle messages, with the {}s filled in
+	private static Logger recordingLogger(List<String> lifecycle) {
+		return (Logger) Proxy.newProxyInstance(Logger.class.getClassLoader(), new Class<?>[] { Logger.class }, (proxy, method, args) -> {
+			if(method.getName().equals("lifecycle") && args != null && args[0] instanceof String) {
+				String message = (String) args[0];
+				Object[] fmt = args.length > 1 && args[1] instanceof Object[] ? (Object[]) args[1] : new Object[0];
+				for(Object arg : fmt) message = message.replaceFirst("\\{}", Matcher.quoteReplacement(String.valueOf(arg)));
+				lifecycle.add(message);
+			}
+			
+			if(method.getReturnType() == boolean.class) return false;
+			if(method.getReturnType() == String.class) return "recording";
+			return null;
+		});
+	}
+}
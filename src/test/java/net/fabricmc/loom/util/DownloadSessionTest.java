@@ -0,0 +1,294 @@
+package net.fabricmc.loom.util;
+
+import org.gradle.api.logging.Logging;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+public class DownloadSessionTest {
+	private Path dir;
+	private Path dest;
+	private Path part;
+	private byte[] body;
+	
+	@Before
+	public void setup() throws IOException {
+		dir = Files.createTempDirectory("voldeloom-download-test");
+		dest = dir.resolve("file.bin");
+		part = dir.resolve("file.bin.part");
+		
+		body = new byte[300_000];
+		new Random(1234).nextBytes(body);
+	}
+	
+	@After
+	public void cleanup() throws IOException {
+		try(Stream<Path> walk = Files.walk(dir)) {
+			walk.sorted(Collections.reverseOrder()).forEach(p -> p.toFile().delete());
+		}
+	}
+	
+	private DownloadSession session(DroppingServer server) {
+		return new DownloadSession(Logging.getLogger(DownloadSessionTest.class), false, false)
+			.url(server.url())
+			.dest(dest)
+			.gzip(false)
+			.quiet();
+	}
+	
+	@Test
+	public void resumesAfterTheServerHangsUp() throws Exception {
+		try(DroppingServer server = new DroppingServer(body, 100_000, 1)) {
+			session(server).download();
+			
+			assertArrayEquals(body, Files.readAllBytes(dest));
+			assertEquals(2, server.ranges.size());
+			assertEquals("", server.ranges.get(0));
+			assertTrue("second request should resume, but asked for " + server.ranges.get(1), server.ranges.get(1).startsWith("bytes=") && !server.ranges.get(1).equals("bytes=0-"));
+			assertFalse(Files.exists(part));
+		}
+	}
+	
+	@Test
+	public void resumesAfterTheServerHangsUpWithExpectedHash() throws Exception {
+		try(DroppingServer server = new DroppingServer(body, 100_000, 2)) {
+			session(server).expectSha1(sha1(body)).download();
+			
+			assertArrayEquals(body, Files.readAllBytes(dest));
+			assertEquals(3, server.ranges.size());
+		}
+	}
+	
+	@Test
+	public void keepsThePartFileWhenItKeepsDropping() throws Exception {
+		try(DroppingServer server = new DroppingServer(body, 10_000, Integer.MAX_VALUE)) {
+			assertThrows(IOException.class, () -> session(server).expectSha1(sha1(body)).download());
+			
+			//never published a truncated file, and kept what it had so the next build can resume
+			assertFalse(Files.exists(dest));
+			assertTrue(Files.exists(part));
+			assertTrue(Files.size(part) > 0 && Files.size(part) < body.length);
+		}
+		
+		try(DroppingServer server = new DroppingServer(body, -1, 0)) {
+			session(server).expectSha1(sha1(body)).download();
+			
+			assertArrayEquals(body, Files.readAllBytes(dest));
+			assertTrue("should resume the leftover .part, but asked for " + server.ranges.get(0), server.ranges.get(0).startsWith("bytes=") && !server.ranges.get(0).equals("bytes=0-"));
+		}
+	}
+	
+	@Test
+	public void checksTheExpectedHash() throws Exception {
+		try(DroppingServer server = new DroppingServer(body, -1, 0)) {
+			session(server).expectSha1(sha1(body)).expectSize(body.length).download();
+			
+			assertArrayEquals(body, Files.readAllBytes(dest));
+		}
+	}
+	
+	@Test
+	public void rejectsTheWrongHash() throws Exception {
+		try(DroppingServer server = new DroppingServer(body, -1, 0)) {
+			IOException e = assertThrows(IOException.class, () -> session(server).expectSha1(sha1(new byte[] { 1, 2, 3 })).download());
+			
+			assertTrue(e.getMessage(), e.getMessage().contains("SHA-1"));
+			assertFalse(Files.exists(dest));
+			assertFalse(Files.exists(part)); //a complete file with the wrong hash is no good to resume from
+		}
+	}
+	
+	@Test
+	public void doesntReplaceAGoodFileWithABadDownload() throws Exception {
+		byte[] old = "the old file".getBytes(StandardCharsets.UTF_8);
+		Files.write(dest, old);
+		
+		try(DroppingServer server = new DroppingServer(body, -1, 0)) {
+			assertThrows(IOException.class, () -> new DownloadSession(Logging.getLogger(DownloadSessionTest.class), false, true)
+				.url(server.url())
+				.dest(dest)
+				.gzip(false)
+				.quiet()
+				.expectSha1(sha1(new byte[] { 1, 2, 3 }))
+				.download());
+			
+			assertArrayEquals(old, Files.readAllBytes(dest));
+		}
+	}
+	
+	@Test
+	public void concurrentSessionsOnOneDest() throws Exception {
+		try(DroppingServer server = new DroppingServer(body, -1, 0)) {
+			//the race is between one session finishing and the next one picking up the .part file, so go around a few times
+			for(int round = 0; round < 20; round++) {
+				Files.deleteIfExists(dest);
+				
+				CountDownLatch start = new CountDownLatch(1);
+				List<Throwable> failures = Collections.synchronizedList(new ArrayList<>());
+				List<Thread> threads = new ArrayList<>();
+				for(int i = 0; i < 4; i++) {
+					Thread thread = new Thread(() -> {
+						try {
+							start.await();
+							session(server).expectSha1(sha1(body)).download();
+						} catch (Throwable e) {
+							failures.add(e);
+						}
+					});
+					thread.start();
+					threads.add(thread);
+				}
+				
+				start.countDown();
+				for(Thread thread : threads) thread.join();
+				
+				assertEquals("round " + round + ": " + failures, 0, failures.size());
+				assertArrayEquals("round " + round, body, Files.readAllBytes(dest));
+				try(Stream<Path> list = Files.list(dir)) {
+					assertEquals("round " + round, Collections.singletonList(dest), list.collect(Collectors.toList()));
+				}
+			}
+		}
+	}
+	
+	static String sha1(byte[] bytes) {
+		return Checksum.toHexString(Checksum.SHA1.get().digest(bytes));
+	}
+	
+	/**
+	 * A tiny HTTP server for one file that understands {@code Range: bytes=N-}, and can hang up partway through the body
+	 * (after sending a full {@code Content-Length}) without any error, like a flaky CDN does. It can also answer the first
+	 * few requests with a 503. Each client gets its own thread, so concurrent downloads really are concurrent.
+	 */
+	static class DroppingServer implements Closeable {
+		/**
+		 * @param dropAfter how many bytes of the body to send before hanging up, or -1 to send all of it
+		 * @param drops     how many responses to cut short like that, before sending whole ones
+		 */
+		DroppingServer(byte[] body, int dropAfter, int drops) throws IOException {
+			this.body = body;
+			this.dropAfter = dropAfter;
+			this.drops = drops;
+			this.socket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+			
+			Thread thread = new Thread(this::serve, "DroppingServer");
+			thread.setDaemon(true);
+			thread.start();
+		}
+		
+		private final byte[] body;
+		private final int dropAfter;
+		private int drops;
+		private int failures;
+		private final ServerSocket socket;
+		
+		//Range header of each request, "" if there wasn't one
+		final List<String> ranges = Collections.synchronizedList(new ArrayList<>());
+		
+		/**
+		 * Answer the next {@code failures} requests with a 503 instead of the file.
+		 */
+		synchronized DroppingServer failFirst(int failures) {
+			this.failures = failures;
+			return this;
+		}
+		
+		String url() {
+			return "http://127.0.0.1:" + socket.getLocalPort() + "/file.bin";
+		}
+		
+		private synchronized boolean takeFailure() {
+			if(failures <= 0) return false;
+			failures--;
+			return true;
+		}
+		
+		private synchronized boolean takeDrop() {
+			if(dropAfter == -1 || drops <= 0) return false;
+			drops--;
+			return true;
+		}
+		
+		private void serve() {
+			while(!socket.isClosed()) {
+				try {
+					Socket client = socket.accept();
+					Thread thread = new Thread(() -> respond(client), "DroppingServer client");
+					thread.setDaemon(true);
+					thread.start();
+				} catch (IOException e) {
+					//closed
+				}
+			}
+		}
+		
+		private void respond(Socket client) {
+			try(Socket c = client) {
+				BufferedReader reader = new BufferedReader(new InputStreamReader(c.getInputStream(), StandardCharsets.ISO_8859_1));
+				String range = "";
+				String line;
+				while((line = reader.readLine()) != null && !line.isEmpty()) {
+					if(line.toLowerCase().startsWith("range:")) range = line.substring("range:".length()).trim();
+				}
+				ranges.add(range);
+				
+				OutputStream out = c.getOutputStream();
+				if(takeFailure()) {
+					out.write("HTTP/1.1 503 Service Unavailable\r\nContent-Length: 0\r\nConnection: close\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1));
+					out.flush();
+					return;
+				}
+				
+				int start = range.startsWith("bytes=") ? Integer.parseInt(range.substring("bytes=".length(), range.indexOf('-'))) : 0;
+				int length = body.length - start;
+				
+				StringBuilder headers = new StringBuilder();
+				if(start == 0) headers.append("HTTP/1.1 200 OK\r\n");
+				else headers.append("HTTP/1.1 206 Partial Content\r\nContent-Range: bytes ").append(start).append('-').append(body.length - 1).append('/').append(body.length).append("\r\n");
+				headers.append("Content-Length: ").append(length).append("\r\nConnection: close\r\n\r\n");
+				
+				out.write(headers.toString().getBytes(StandardCharsets.ISO_8859_1));
+				if(takeDrop()) {
+					out.write(body, start, Math.min(dropAfter, length));
+					out.flush();
+					c.shutdownOutput(); //a clean FIN, not a reset
+				} else {
+					out.write(body, start, length);
+					out.flush();
+				}
+			} catch (IOException e) {
+				//the client went away
+			}
+		}
+	
+	@Override
+		public void close() throws IOException {
+			socket.close();
+		}
+	}
+}